@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs a JPQL update or delete of a @NamedQuery or @QueryString method
+ * as a series of statements, each limited to the next range of size
+ * rows ordered by the given attribute, so no single statement holds
+ * locks on the whole table.  The affected row counts are summed.
+ * <p/>
+ * With transactional each chunk is committed in a transaction of its
+ * own, suspending any caller transaction.  Chunks that were committed
+ * stay committed if a later one fails.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ChunkBy {
+    String value() default "id";
+
+    int size() default 1000;
+
+    boolean transactional() default false;
+}
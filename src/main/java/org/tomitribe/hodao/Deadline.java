@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scope in which everything hodao runs must be done by a point in
+ * time.  Each query is given the milliseconds left as its
+ * jakarta.persistence.query.timeout, and once the time is up calls
+ * fail with a QueryTimeoutException without going to the database.
+ * <p/>
+ * <pre>
+ * try (Deadline deadline = Deadline.open(500)) {
+ *     final Book book = dao.find(id);
+ *     final List&lt;Book&gt; related = dao.findByAuthor(book.getAuthor());
+ * }
+ * </pre>
+ * Scopes belong to the thread that opened them and may be nested.  A
+ * nested scope never ends later than the one around it.  Work handed
+ * to other threads carries the deadline by opening the same one there.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Deadline implements AutoCloseable {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+    private final Deadline previous;
+
+    /**
+     * In System.nanoTime terms
+     */
+    private final long expires;
+
+    private Deadline(final Deadline previous, final long expires) {
+        this.previous = previous;
+        this.expires = expires;
+    }
+
+    /**
+     * Open a scope on the current thread ending millis from now
+     *
+     * @param millis
+     * @return
+     * @throws ValidationException if millis is negative
+     */
+    public static Deadline open(final long millis) {
+        if (millis < 0) {
+            throw new ValidationException("A deadline cannot be " + millis + "ms away");
+        }
+
+        return expiring(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Open a scope on the current thread ending when the specified
+     * one does, typically one from the thread that handed over work
+     *
+     * @param deadline
+     * @return
+     */
+    public static Deadline open(final Deadline deadline) {
+        return expiring(deadline.expires);
+    }
+
+    private static Deadline expiring(final long expires) {
+        final Deadline previous = CURRENT.get();
+
+        final boolean sooner = previous == null || expires - previous.expires < 0;
+        final Deadline deadline = new Deadline(previous, (sooner) ? expires : previous.expires);
+
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * The innermost scope open on the current thread, or null
+     *
+     * @return
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * The milliseconds left, rounded up, or 0 if the time is up
+     *
+     * @return
+     */
+    public long remaining() {
+        final long nanos = expires - System.nanoTime();
+
+        if (nanos <= 0) {
+            return 0;
+        }
+
+        return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public boolean isExpired() {
+        return expires - System.nanoTime() <= 0;
+    }
+
+    /**
+     * End the scope
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() == this) {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
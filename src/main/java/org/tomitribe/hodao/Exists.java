@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tests whether a query has any result by selecting a constant with
+ * setMaxResults(1), so at most one row is read and nothing is hydrated.
+ * The method returns a boolean.
+ * <p/>
+ * The query is the JPQL of query(), the named query of namedQuery(),
+ * or else derived from entity() (or @EntityType) with one equality
+ * predicate per @QueryParam, the parameter name being the attribute.
+ * @Filter parameters apply as they do for selects.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Exists {
+    String query() default "";
+
+    String namedQuery() default "";
+
+    Class<?> entity() default void.class;
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Writes the results of a @NamedQuery or @QueryString select straight
+ * to the OutputStream or Writer parameter of the method, as CSV or as a
+ * JSON array of objects, rather than returning them.  Rows are read
+ * from Query.getResultStream() and written one by one, entities are
+ * detached once written, so memory does not grow with the row count.
+ * <p/>
+ * Entities are written as their basic attributes, in declaration
+ * order.  Select lists are written as their items, named by their
+ * result variable or last attribute.  The method returns void or the
+ * number of rows written.  Streams are UTF-8, flushed but not closed.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Export {
+    Format value() default Format.CSV;
+
+    /**
+     * Write a first line of column names, CSV only
+     */
+    boolean header() default true;
+
+    enum Format {
+        CSV, JSON
+    }
+}
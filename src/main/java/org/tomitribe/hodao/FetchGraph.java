@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Loads the results of a @Find or select method with an entity graph,
+ * passed as the jakarta.persistence.fetchgraph hint, so associations
+ * are fetched with the entity rather than one select at a time later.
+ * Attributes outside the graph are treated as lazy, whatever their mapping says.
+ * <p/>
+ * Name a graph declared with @NamedEntityGraph, or list attribute
+ * paths such as "author" or "author.publisher" to have the graph built
+ * once for the method.  Providers without entity graph support run the
+ * method without the hint.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FetchGraph {
+
+    /**
+     * The name of a @NamedEntityGraph
+     */
+    String value() default "";
+
+    /**
+     * The attribute paths of an ad-hoc graph
+     */
+    String[] attributes() default {};
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import org.tomitribe.hodao.impl.FindBatching;
+
+import jakarta.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A scope in which @Find methods returning CompletableFuture are
+ * queued rather than run.  On dispatch each entity type is read with
+ * one IN query per chunk of distinct ids, on the EntityManager it was
+ * queued with, so lookups made through DAOs on different
+ * EntityManagers are never read together, and the futures complete
+ * with the entities found, or null.  Waiting on a future that is not
+ * done yet dispatches its batch first, and closing the scope
+ * dispatches whatever is left.
+ * <p/>
+ * <pre>
+ * try (FindBatch batch = FindBatch.open()) {
+ *     final CompletableFuture&lt;Author&gt; author = dao.findAuthor(book.getAuthorId());
+ *     ...
+ *     batch.dispatch();
+ * }
+ * </pre>
+ * Outside a scope such methods find the entity straight away.  Scopes
+ * belong to the thread that opened them and may be nested.
+ *
+ * @version $Revision$ $Date$
+ */
+public class FindBatch implements AutoCloseable {
+
+    private static final ThreadLocal<FindBatch> CURRENT = new ThreadLocal<FindBatch>();
+
+    private final FindBatch previous;
+    private final Map<GroupKey, Group> groups = new LinkedHashMap<GroupKey, Group>();
+
+    private FindBatch(final FindBatch previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Open a scope on the current thread
+     *
+     * @return
+     */
+    public static FindBatch open() {
+        final FindBatch batch = new FindBatch(CURRENT.get());
+        CURRENT.set(batch);
+        return batch;
+    }
+
+    /**
+     * The innermost scope open on the current thread, or null
+     *
+     * @return
+     */
+    public static FindBatch current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Queue the lookup of an entity by id.  Equal ids of the same type
+     * looked up on the same EntityManager share a future until the
+     * batch is dispatched.
+     *
+     * @param em
+     * @param type
+     * @param id
+     * @return
+     */
+    public synchronized CompletableFuture<Object> enqueue(final EntityManager em, final Class<?> type, final Object id) {
+        final GroupKey key = new GroupKey(em, type);
+        Group group = groups.get(key);
+
+        if (group == null) {
+            group = new Group(em, type);
+            groups.put(key, group);
+        }
+
+        Handle handle = group.handles.get(id);
+
+        if (handle == null) {
+            handle = new Handle();
+            group.handles.put(id, handle);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Resolve everything queued so far
+     */
+    public void dispatch() {
+        final List<Group> pending;
+
+        synchronized (this) {
+            pending = new ArrayList<Group>(groups.values());
+            groups.clear();
+        }
+
+        for (final Group group : pending) {
+            final Map<Object, Handle> handles = group.handles;
+
+            try {
+                final Map<Object, Object> found = FindBatching.find(group.em, group.type, handles.keySet());
+
+                for (final Map.Entry<Object, Handle> handle : handles.entrySet()) {
+                    handle.getValue().complete(found.get(handle.getKey()));
+                }
+            } catch (final RuntimeException e) {
+                for (final Handle handle : handles.values()) {
+                    handle.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatch what is left and end the scope
+     */
+    @Override
+    public void close() {
+        try {
+            dispatch();
+        } finally {
+            if (CURRENT.get() == this) {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        }
+    }
+
+    private static class Group {
+        private final EntityManager em;
+        private final Class<?> type;
+        private final Map<Object, Handle> handles = new LinkedHashMap<Object, Handle>();
+
+        private Group(final EntityManager em, final Class<?> type) {
+            this.em = em;
+            this.type = type;
+        }
+    }
+
+    /**
+     * An entity type on one EntityManager, told apart by identity as
+     * EntityManagers do not define equality
+     */
+    private static class GroupKey {
+        private final EntityManager em;
+        private final Class<?> type;
+
+        private GroupKey(final EntityManager em, final Class<?> type) {
+            this.em = em;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GroupKey)) {
+                return false;
+            }
+
+            final GroupKey that = (GroupKey) o;
+            return em == that.em && type.equals(that.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(em) + type.hashCode();
+        }
+    }
+
+    /**
+     * Dispatches its batch when waited on before it is done
+     */
+    private class Handle extends CompletableFuture<Object> {
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            if (!isDone()) {
+                dispatch();
+            }
+            return super.get();
+        }
+
+        @Override
+        public Object get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!isDone()) {
+                dispatch();
+            }
+            return super.get(timeout, unit);
+        }
+
+        @Override
+        public Object join() {
+            if (!isDone()) {
+                dispatch();
+            }
+            return super.join();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import jakarta.persistence.LockModeType;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Locks the rows a @Find or select method reads, for instance to have
+ * several consumers take work from a table acting as a queue.  The
+ * method must run in a transaction, the locks last until it ends.
+ * <p/>
+ * With skipLocked rows another transaction holds are left out of the
+ * results rather than waited for, so consumers each take different
+ * rows.  Only Hibernate supports this, other providers are refused.
+ * Otherwise timeout is how many milliseconds to wait for a lock, 0
+ * for not at all and -1 for the provider's default.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Lock {
+    LockModeType value() default LockModeType.PESSIMISTIC_WRITE;
+
+    boolean skipLocked() default false;
+
+    int timeout() default -1;
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what hodao did for each DAO method, such as how many
+ * calls it retried.  Counters start at zero and only ever grow, so
+ * monitoring can read them as often as it likes and compute rates.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Metrics {
+
+    /**
+     * Attempts of a @Retry method that failed and were tried again
+     */
+    public static final String RETRIED = "retry.retried";
+
+    /**
+     * Calls of a @Retry method that succeeded after at least one retry
+     */
+    public static final String RECOVERED = "retry.recovered";
+
+    /**
+     * Calls of a @Retry method that failed on their last attempt
+     */
+    public static final String EXHAUSTED = "retry.exhausted";
+
+    /**
+     * Calls of a @MaxConcurrent method that had to wait for a permit
+     */
+    public static final String QUEUED = "concurrency.queued";
+
+    /**
+     * Calls of a @MaxConcurrent method that were refused a permit
+     */
+    public static final String REJECTED = "concurrency.rejected";
+
+    private static final ConcurrentHashMap<Method, ConcurrentHashMap<String, LongAdder>> COUNTERS =
+            new ConcurrentHashMap<Method, ConcurrentHashMap<String, LongAdder>>();
+
+    private Metrics() {
+    }
+
+    public static void increment(final Method method, final String counter) {
+        ConcurrentHashMap<String, LongAdder> counters = COUNTERS.get(method);
+
+        if (counters == null) {
+            COUNTERS.putIfAbsent(method, new ConcurrentHashMap<String, LongAdder>());
+            counters = COUNTERS.get(method);
+        }
+
+        LongAdder adder = counters.get(counter);
+
+        if (adder == null) {
+            counters.putIfAbsent(counter, new LongAdder());
+            adder = counters.get(counter);
+        }
+
+        adder.increment();
+    }
+
+    /**
+     * The value of one counter of the method
+     *
+     * @param method
+     * @param counter such as Metrics.RETRIED
+     * @return
+     */
+    public static long get(final Method method, final String counter) {
+        final ConcurrentHashMap<String, LongAdder> counters = COUNTERS.get(method);
+        final LongAdder adder = (counters == null) ? null : counters.get(counter);
+
+        return (adder == null) ? 0 : adder.sum();
+    }
+
+    /**
+     * All the counters of the method that are not zero, by name
+     *
+     * @param method
+     * @return
+     */
+    public static Map<String, Long> of(final Method method) {
+        final Map<String, Long> values = new TreeMap<String, Long>();
+        final ConcurrentHashMap<String, LongAdder> counters = COUNTERS.get(method);
+
+        if (counters != null) {
+            for (final Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().sum());
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sorts a @NamedQuery or @QueryString by the argument, which must name
+ * one of the allowed expressions.  An argument of "title", "title asc",
+ * "title desc" or "-title" selects "b.title" from
+ * {@code @OrderBy(allowed = {"b.title", "b.year"})}.  A null argument
+ * keeps the query's own order.
+ * <p/>
+ * Only the allowed expressions ever reach the query, and one variant
+ * is built per expression and direction, then reused.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OrderBy {
+    String[] allowed();
+}
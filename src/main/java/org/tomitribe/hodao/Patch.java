@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Updates only some attributes of an entity with a single bulk UPDATE
+ * statement rather than a find and merge.  Either the method takes the
+ * id plus @Set parameters, or it takes an entity of which only the
+ * non-null attributes are written.  Null @Set arguments are left out
+ * too, and one statement is built and cached per set of attributes.
+ * <p/>
+ * Versioned entities have their version incremented, and checked when
+ * an expected version is given via a @Version parameter or the entity.
+ * A version mismatch raises an OptimisticLockException.
+ * <p/>
+ * As with any bulk update, managed instances are not refreshed.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Patch {
+    Class<?> value() default void.class;
+}
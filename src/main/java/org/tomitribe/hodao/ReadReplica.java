@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Lets a read method, or every read method of a DAO, run on a replica
+ * when the DAO is invoked through an EntityManagerResolver.  Replicas
+ * may lag behind the primary, so only reads that tolerate slightly
+ * stale results should be marked.  @ReadReplica(false) on a method
+ * keeps it on the primary when its class is marked.
+ * <p/>
+ * Writes, @Lock methods, and reads in a transaction that has already
+ * written through the resolver always use the primary, so a
+ * transaction reads its own writes.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadReplica {
+    boolean value() default true;
+}
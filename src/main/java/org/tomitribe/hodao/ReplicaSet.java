@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import jakarta.persistence.EntityManager;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A primary EntityManager and its read replicas, spreading reads over
+ * the replicas in turn or to the one with the fewest calls running.
+ *
+ * @version $Revision$ $Date$
+ */
+public class ReplicaSet implements EntityManagerResolver {
+
+    public enum Balance {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
+    private final EntityManager primary;
+    private final EntityManager[] replicas;
+    private final AtomicInteger[] running;
+    private final Balance balance;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReplicaSet(final EntityManager primary, final Balance balance, final EntityManager... replicas) {
+        this.primary = primary;
+        this.balance = balance;
+        this.replicas = replicas;
+        this.running = new AtomicInteger[replicas.length];
+
+        for (int i = 0; i < running.length; i++) {
+            running[i] = new AtomicInteger();
+        }
+    }
+
+    @Override
+    public EntityManager primary() {
+        return primary;
+    }
+
+    @Override
+    public EntityManager replica() {
+        if (replicas.length == 0) {
+            return primary;
+        }
+
+        final int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        int chosen = start;
+
+        if (balance == Balance.LEAST_LOADED) {
+            // scanning from a rotating start spreads the ties
+            for (int i = 1; i < replicas.length; i++) {
+                final int index = (start + i) % replicas.length;
+                if (running[index].get() < running[chosen].get()) {
+                    chosen = index;
+                }
+            }
+        }
+
+        running[chosen].incrementAndGet();
+
+        return replicas[chosen];
+    }
+
+    @Override
+    public void release(final EntityManager replica) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] == replica) {
+                running[i].decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * How many calls are running on each replica
+     *
+     * @return
+     */
+    public int[] getRunning() {
+        final int[] counts = new int[running.length];
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = running[i].get();
+        }
+
+        return counts;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import jakarta.persistence.LockTimeoutException;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PessimisticLockException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs a write method again when it fails with one of the listed
+ * exceptions, by default the optimistic and pessimistic lock conflicts
+ * of contending writes.
+ * <p/>
+ * Update statements, derived deletes and @Patch are run again as they
+ * are.  A @Merge of one entity is reloaded and reapplied: the row the
+ * caller's copy is based on is read as the call starts, and after a
+ * conflict the attributes the caller changed are set on the row as the
+ * other transaction left it.  If that transaction changed one of them
+ * too, or the copy was already stale when the call started, the
+ * OptimisticLockException is thrown, as reapplying would overwrite a
+ * change the caller never saw.  Only entities whose attributes are all
+ * basic are reapplied.  @Persist, @Remove and @Upsert are refused.
+ * <p/>
+ * Each attempt runs in a transaction of its own, committed before the
+ * method returns, as a failed attempt leaves its transaction only fit
+ * for rollback.  Called within a transaction, the method is tried just
+ * once, in that transaction, and a failure it would have retried says
+ * so in a suppressed exception.
+ * <p/>
+ * Between attempts the thread waits backoff milliseconds, doubled for
+ * each further attempt, less a random part of up to jitter of it so
+ * contending callers spread out.  Retries are counted in Metrics.
+ *
+ * @version $Revision$ $Date$
+ */
+@Target(value = ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Retry {
+    Class<? extends Exception>[] on() default {OptimisticLockException.class, PessimisticLockException.class, LockTimeoutException.class};
+
+    /**
+     * How many times to try in all, the first call included
+     */
+    int attempts() default 3;
+
+    long backoff() default 50;
+
+    double jitter() default 0.5;
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao;
+
+import jakarta.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shards keys by their hash code.  Adding or removing a shard moves
+ * most keys to another shard, so the shards are fixed once data is
+ * written.
+ *
+ * @version $Revision$ $Date$
+ */
+public class ShardSet implements ShardResolver {
+
+    private final List<EntityManager> shards;
+
+    public ShardSet(final EntityManager... shards) {
+        if (shards.length == 0) {
+            throw new ValidationException("A ShardSet needs at least one shard");
+        }
+
+        this.shards = Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    @Override
+    public List<EntityManager> shards() {
+        return shards;
+    }
+
+    @Override
+    public EntityManager shard(final Object key) {
+        return shards.get(Math.floorMod(key.hashCode(), shards.size()));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.MaxConcurrent;
+import org.tomitribe.hodao.Metrics;
+import org.tomitribe.hodao.RejectedException;
+import org.tomitribe.hodao.ValidationException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The permits of a @MaxConcurrent method.  A free permit is taken
+ * without blocking, only calls over the limit wait or are rejected.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Bulkhead {
+
+    private static final ConcurrentHashMap<Method, Bulkhead> BULKHEADS = new ConcurrentHashMap<Method, Bulkhead>();
+
+    private static final Bulkhead NONE = new Bulkhead(0, 0);
+
+    private final int limit;
+    private final long queueTimeout;
+    private final Semaphore permits;
+
+    private Bulkhead(final int limit, final long queueTimeout) {
+        this.limit = limit;
+        this.queueTimeout = queueTimeout;
+        this.permits = new Semaphore(limit, true);
+    }
+
+    /**
+     * The bulkhead of the method or null if it has no @MaxConcurrent
+     *
+     * @param method
+     * @return
+     */
+    public static Bulkhead of(final Method method) {
+        Bulkhead bulkhead = BULKHEADS.get(method);
+
+        if (bulkhead == null) {
+            bulkhead = build(method);
+
+            // one semaphore per method, however many threads get here first
+            final Bulkhead existing = BULKHEADS.putIfAbsent(method, bulkhead);
+            if (existing != null) {
+                bulkhead = existing;
+            }
+        }
+
+        return (bulkhead == NONE) ? null : bulkhead;
+    }
+
+    /**
+     * Take a permit, waiting up to the queue timeout for one, or less
+     * if the current Deadline is sooner
+     *
+     * @param method
+     * @throws RejectedException if no permit came free in time
+     */
+    public void acquire(final Method method) {
+        if (permits.tryAcquire()) {
+            return;
+        }
+
+        // no point waiting past the deadline of the call
+        final Deadline deadline = Deadline.current();
+        final long wait = (deadline != null) ? Math.min(queueTimeout, deadline.remaining()) : queueTimeout;
+
+        if (wait > 0) {
+            Metrics.increment(method, Metrics.QUEUED);
+
+            try {
+                if (permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Metrics.increment(method, Metrics.REJECTED);
+
+        throw new RejectedException(method.getName() + " already has " + limit + " calls running");
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    private static Bulkhead build(final Method method) {
+        final MaxConcurrent maxConcurrent = method.getAnnotation(MaxConcurrent.class);
+
+        if (maxConcurrent == null) {
+            return NONE;
+        }
+
+        if (maxConcurrent.value() < 1 || maxConcurrent.queueTimeout() < 0) {
+            throw new ValidationException(method.getName() + " needs a @MaxConcurrent of at least 1 and a queueTimeout of zero or more");
+        }
+
+        return new Bulkhead(maxConcurrent.value(), maxConcurrent.queueTimeout());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A method and its arguments, compared deeply, identifying calls
+ * that must produce the same result.
+ *
+ * @version $Revision$ $Date$
+ */
+public final class CallKey {
+
+    private final Method method;
+    private final Object[] args;
+    private final int hash;
+
+    public CallKey(final Method method, final Object[] args) {
+        this.method = method;
+        this.args = (args == null) ? new Object[0] : args.clone();
+        this.hash = 31 * method.hashCode() + Arrays.deepHashCode(this.args);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CallKey)) {
+            return false;
+        }
+
+        final CallKey key = (CallKey) o;
+        return method.equals(key.method) && Arrays.deepEquals(args, key.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
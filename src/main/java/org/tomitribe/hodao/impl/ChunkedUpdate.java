@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.ChunkBy;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Splits a bulk update or delete into statements over successive
+ * ranges of the @ChunkBy attribute.  The end of each range is found
+ * by skipping size rows of an ordered select with the same where
+ * clause, then the statement runs limited to the range.
+ * <p/>
+ * The statements for each base query are built once and reused.
+ *
+ * @version $Revision$ $Date$
+ */
+public class ChunkedUpdate {
+
+    private static final Map<Method, ChunkedUpdate> CHUNKS = new ConcurrentHashMap<Method, ChunkedUpdate>();
+
+    private static final String VARIABLE = "x";
+    private static final String START = "chunkStart";
+    private static final String END = "chunkEnd";
+
+    private static final int FIRST = 0;
+    private static final int NEXT = 1;
+    private static final int ALL = 2;
+    private static final int HEAD = 3;
+    private static final int MIDDLE = 4;
+    private static final int TAIL = 5;
+
+    private final String attribute;
+    private final int size;
+    private final boolean transactional;
+    private final Map<String, String[]> statements = new ConcurrentHashMap<String, String[]>();
+
+    private ChunkedUpdate(final ChunkBy chunkBy) {
+        this.attribute = chunkBy.value();
+        this.size = chunkBy.size();
+        this.transactional = chunkBy.transactional();
+    }
+
+    /**
+     * The chunking of the method or null if it has no @ChunkBy
+     *
+     * @param method
+     * @return
+     */
+    public static ChunkedUpdate of(final Method method) {
+        final ChunkBy chunkBy = method.getAnnotation(ChunkBy.class);
+
+        if (chunkBy == null) {
+            return null;
+        }
+
+        ChunkedUpdate chunked = CHUNKS.get(method);
+
+        if (chunked == null) {
+            if (chunkBy.size() < 1) {
+                throw new ValidationException(method.getName() + " has a @ChunkBy size less than 1");
+            }
+
+            chunked = new ChunkedUpdate(chunkBy);
+            CHUNKS.put(method, chunked);
+        }
+
+        return chunked;
+    }
+
+    /**
+     * Run the update chunk by chunk
+     *
+     * @param em
+     * @param jpql the update or delete statement
+     * @param binder binds the arguments to both the selects and the updates
+     * @return the total number of rows updated
+     * @throws Exception
+     */
+    public int execute(final EntityManager em, final String jpql, final Binder binder) throws Exception {
+        final String[] statements = statements(jpql);
+
+        int rows = 0;
+        Object start = null;
+
+        while (true) {
+            final Query select = em.createQuery((start == null) ? statements[FIRST] : statements[NEXT]);
+            binder.bind(select);
+            if (start != null) {
+                select.setParameter(START, start);
+            }
+            select.setFirstResult(size - 1);
+            select.setMaxResults(1);
+            Timeouts.apply(select);
+
+            final List<?> found = select.getResultList();
+            final Object end = (found.isEmpty()) ? null : found.get(0);
+
+            final String statement;
+            if (start == null) {
+                statement = (end == null) ? statements[ALL] : statements[HEAD];
+            } else {
+                statement = (end == null) ? statements[TAIL] : statements[MIDDLE];
+            }
+
+            rows += update(em, statement, start, end, binder);
+
+            if (end == null) {
+                return rows;
+            }
+
+            start = end;
+        }
+    }
+
+    private int update(final EntityManager em, final String statement, final Object start, final Object end, final Binder binder) throws Exception {
+        final Callable<Integer> chunk = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                final Query query = em.createQuery(statement);
+                binder.bind(query);
+                if (start != null) {
+                    query.setParameter(START, start);
+                }
+                if (end != null) {
+                    query.setParameter(END, end);
+                }
+                Timeouts.apply(query);
+                return query.executeUpdate();
+            }
+        };
+
+        return (transactional) ? Transactions.inNewTransaction(em, chunk) : chunk.call();
+    }
+
+    private String[] statements(final String jpql) {
+        String[] built = statements.get(jpql);
+
+        if (built == null) {
+            built = build(jpql);
+            statements.put(jpql, built);
+        }
+
+        return built;
+    }
+
+    private String[] build(final String jpql) {
+        final String entity = Jpql.bulkEntity(jpql);
+        if (entity == null) {
+            throw new ValidationException("@ChunkBy needs an update or delete statement, not " + jpql);
+        }
+
+        final String update = Jpql.declareBulkVariable(jpql, VARIABLE);
+        final String variable = Jpql.bulkVariable(update);
+        final String path = variable + "." + attribute;
+
+        final int where = Jpql.indexOf(update, "where", 0);
+        final String select = "select " + path + " from " + entity + " " + variable
+                + ((where < 0) ? "" : " " + update.substring(where));
+
+        final String after = path + " > :" + START;
+        final String upTo = path + " <= :" + END;
+
+        final String[] built = new String[6];
+        built[FIRST] = Jpql.replaceOrderBy(select, path);
+        built[NEXT] = Jpql.replaceOrderBy(Jpql.addConditions(select, Collections.singletonList(after)), path);
+        built[ALL] = update;
+        built[HEAD] = Jpql.addConditions(update, Collections.singletonList(upTo));
+        built[MIDDLE] = Jpql.addConditions(update, Arrays.asList(after, upTo));
+        built[TAIL] = Jpql.addConditions(update, Collections.singletonList(after));
+
+        return built;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.Lock;
+import org.tomitribe.hodao.ValidationException;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.QueryTimeoutException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The calls of @Coalesce methods in flight, by method and arguments.
+ * A call finding an equal one in flight waits for it rather than
+ * running again, for no longer than the time left on its own Deadline.
+ * <p/>
+ * Only calls made outside a transaction are shared.  The shared call
+ * runs on an EntityManager of its own, so a caller in a transaction
+ * would not see its own writes, nor hold the locks and isolation its
+ * transaction gives, and such calls simply run on the caller's
+ * EntityManager.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Coalescing {
+
+    private static final Map<CallKey, CompletableFuture<Object>> FLIGHTS = new ConcurrentHashMap<CallKey, CompletableFuture<Object>>();
+
+    private Coalescing() {
+    }
+
+    public static Object invoke(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        if (Operations.isWrite(em, method)) {
+            throw new ValidationException(method.getName() + " cannot be @Coalesce, it is not a read");
+        }
+
+        if (Operations.isSingleUse(method)) {
+            throw new ValidationException(method.getName() + " cannot be @Coalesce, its results cannot be shared between callers");
+        }
+
+        if (method.isAnnotationPresent(Lock.class)) {
+            throw new ValidationException(method.getName() + " cannot be @Coalesce, shared reads run on an EntityManager of their own and hold no locks for the caller");
+        }
+
+        if (Transactions.isActive(em)) {
+            return PersistenceHandler.dispatch(em, method, args);
+        }
+
+        final CallKey key = new CallKey(method, args);
+        final CompletableFuture<Object> flight = new CompletableFuture<Object>();
+        final CompletableFuture<Object> existing = FLIGHTS.putIfAbsent(key, flight);
+
+        if (existing != null) {
+            return share(await(method, existing));
+        }
+
+        try {
+            final Object result = execute(em, method, args);
+            flight.complete(result);
+            return result;
+        } catch (final Throwable t) {
+            flight.completeExceptionally(t);
+            throw t;
+        } finally {
+            FLIGHTS.remove(key, flight);
+        }
+    }
+
+    private static Object execute(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final EntityManager own = em.getEntityManagerFactory().createEntityManager();
+        try {
+            final Object result = PersistenceHandler.dispatch(own, method, args);
+
+            // read now, as lazily read result lists die with their EntityManager
+            if (result instanceof Collection) {
+                return Collections.unmodifiableList(new ArrayList<Object>((Collection<?>) result));
+            }
+
+            return result;
+        } finally {
+            own.close();
+        }
+    }
+
+    /**
+     * Arrays are the one kind of result that cannot be made read-only, so each caller gets a copy
+     *
+     * @param result
+     * @return
+     */
+    static Object share(final Object result) {
+        if (result == null || !result.getClass().isArray()) {
+            return result;
+        }
+
+        final int length = Array.getLength(result);
+        final Object copy = Array.newInstance(result.getClass().getComponentType(), length);
+        System.arraycopy(result, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static Object await(final Method method, final CompletableFuture<Object> flight) throws Throwable {
+        final Deadline deadline = Deadline.current();
+
+        try {
+            if (deadline == null) {
+                return flight.get();
+            }
+
+            return flight.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            throw e.getCause();
+        } catch (final TimeoutException e) {
+            throw new QueryTimeoutException("The deadline passed while " + method.getName() + " waited for an equal call in flight");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads work is spread over.  In a container that is the default
+ * ManagedExecutorService, which propagates the caller's context,
+ * elsewhere a shared pool of daemon threads.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Concurrency {
+
+    private static final String MANAGED_EXECUTOR = "java:comp/DefaultManagedExecutorService";
+
+    private static ExecutorService shared;
+
+    private Concurrency() {
+    }
+
+    public static ExecutorService executor() {
+        try {
+            final Object executor = new InitialContext().lookup(MANAGED_EXECUTOR);
+            if (executor instanceof ExecutorService) {
+                return (ExecutorService) executor;
+            }
+        } catch (final NamingException e) {
+            // not in a container
+        }
+
+        return shared();
+    }
+
+    private static synchronized ExecutorService shared() {
+        if (shared == null) {
+            final AtomicInteger count = new AtomicInteger();
+
+            shared = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "hodao-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return shared;
+    }
+}
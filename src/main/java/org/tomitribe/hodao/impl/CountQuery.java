@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Count;
+import org.tomitribe.hodao.Exists;
+import org.tomitribe.hodao.QueryParam;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+
+import jakarta.persistence.EntityManager;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the minimal JPQL for @Count and @Exists methods, once per
+ * method.  Counts select count(x), existence checks select just the
+ * id, and both drop the order by clause of the query they are based
+ * on.  Entities with composite ids are checked with a count.  A
+ * select distinct is counted by the distinct values it selects.
+ *
+ * @version $Revision$ $Date$
+ */
+public class CountQuery {
+
+    private static final Map<Method, CountQuery> QUERIES = new ConcurrentHashMap<Method, CountQuery>();
+
+    /**
+     * What count(distinct ...) accepts, an identification variable or a path
+     */
+    private static final Pattern COUNTABLE = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+
+    private final String jpql;
+    private final boolean count;
+
+    private CountQuery(final String jpql, final boolean count) {
+        this.jpql = jpql;
+        this.count = count;
+    }
+
+    /**
+     * The query for the @Count or @Exists method
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static CountQuery of(final EntityManager em, final Method method) {
+        CountQuery query = QUERIES.get(method);
+
+        if (query == null) {
+            query = build(em, method);
+            QUERIES.put(method, query);
+        }
+
+        return query;
+    }
+
+    public String getJpql() {
+        return jpql;
+    }
+
+    /**
+     * Does the query select a count, rather than ids?
+     *
+     * @return
+     */
+    public boolean isCount() {
+        return count;
+    }
+
+    private static CountQuery build(final EntityManager em, final Method method) {
+        final Count count = method.getAnnotation(Count.class);
+        final Exists exists = method.getAnnotation(Exists.class);
+
+        final String source;
+        if (count != null) {
+            source = source(em, method, count.query(), count.namedQuery(), count.entity());
+        } else {
+            source = source(em, method, exists.query(), exists.namedQuery(), exists.entity());
+        }
+
+        final String variable = Jpql.fromVariable(source);
+        if (variable == null) {
+            throw new ValidationException("Cannot find the identification variable of " + source);
+        }
+
+        // not a constant, some providers bind those as parameters that databases then refuse to select
+        final String id = Queries.idAttribute(em, Jpql.fromEntity(source));
+        if (exists != null && id != null) {
+            final String from = Jpql.removeOrderBy(source.substring(Jpql.indexOf(source, "from", 0)));
+            return new CountQuery("select " + variable + "." + id + " " + from, false);
+        }
+
+        return new CountQuery(count(source), true);
+    }
+
+    /**
+     * The query counting the results of the specified select, without
+     * its order by clause
+     *
+     * @param source
+     * @return
+     * @throws ValidationException if the select has no identification variable,
+     * or is a select distinct of something other than a single variable or path
+     */
+    public static String count(final String source) {
+        final String variable = Jpql.fromVariable(source);
+        if (variable == null) {
+            throw new ValidationException("Cannot find the identification variable of " + source);
+        }
+
+        final int from = Jpql.indexOf(source, "from", 0);
+        final int distinct = Jpql.indexOf(source, "distinct", 0);
+
+        if (distinct < 0 || distinct > from) {
+            return "select count(" + variable + ") " + Jpql.removeOrderBy(source.substring(from));
+        }
+
+        // distinct applies to what is selected, which need not be the variable
+        final List<String> items = Jpql.selectItems(source);
+        final String selected = (items.size() == 1) ? Jpql.itemExpression(items.get(0)) : null;
+        if (selected == null || !COUNTABLE.matcher(selected).matches()) {
+            throw new ValidationException("Cannot count the distinct results of " + source + ", it must select a single variable or path");
+        }
+
+        return "select count(distinct " + selected + ") " + Jpql.removeOrderBy(source.substring(from));
+    }
+
+    private static String source(final EntityManager em, final Method method, final String query, final String namedQuery, final Class<?> entity) {
+        if (query.length() > 0) {
+            return query;
+        }
+
+        if (namedQuery.length() > 0) {
+            return Queries.named(em, namedQuery);
+        }
+
+        final Class<?> type = (Void.TYPE.equals(entity)) ? Queries.entityType(method) : entity;
+
+        final StringBuilder jpql = new StringBuilder("select x from ").append(em.getMetamodel().entity(type).getName()).append(" x");
+
+        String separator = " where ";
+        for (final Annotation[] annotations : method.getParameterAnnotations()) {
+            for (final Annotation annotation : annotations) {
+                if (annotation instanceof QueryParam) {
+                    final String name = ((QueryParam) annotation).value();
+                    jpql.append(separator).append("x.").append(name).append(" = :").append(name);
+                    separator = " and ";
+                }
+            }
+        }
+
+        return jpql.toString();
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.MaxResults;
+import org.tomitribe.hodao.Offset;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+import org.tomitribe.hodao.util.Parameter;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JPQL derived from the name of an unannotated abstract method.
+ * <p/>
+ * Supported are findBy, countBy, existsBy and deleteBy followed by
+ * property predicates joined with And/Or and an optional OrderBy,
+ * for example findByTitleAndYearOrderByTitleAsc.  Predicates may end
+ * in an operator such as GreaterThan, Like, In or IsNull.  Method
+ * parameters other than @Offset and @MaxResults are bound in order.
+ * StartingWith, EndingWith and Containing match their argument
+ * literally, wildcards in it are escaped.  Like passes it through.
+ * Existence checks select the id and read at most one row, as
+ * @Exists does, unless the entity has a composite id.
+ * <p/>
+ * Names are parsed once per method and the JPQL registered under the
+ * name DaoClass.method alongside the annotated named queries.  Each
+ * call passes the identical string to the provider, so its query
+ * compilation cache parses it only once.  EntityManagerFactory's
+ * addNamedQuery is not used as providers differ in whether such
+ * queries can be looked up again.
+ *
+ * @version $Revision$ $Date$
+ */
+public class DerivedQuery {
+
+    public enum Kind {
+        FIND, COUNT, EXISTS, DELETE
+    }
+
+    private static final Pattern NAME = Pattern.compile("(find|count|exists|delete)([A-Z]\\w*?)??(?:By([A-Z]\\w*?))?(?:OrderBy([A-Z]\\w*))?");
+    private static final Pattern OR = Pattern.compile("(?<=[a-z0-9])Or(?=[A-Z])");
+    private static final Pattern AND = Pattern.compile("(?<=[a-z0-9])And(?=[A-Z])");
+    private static final Pattern ORDER = Pattern.compile("([A-Z]\\w*?)(Asc|Desc|$)(?=[A-Z]|$)");
+
+    /**
+     * Operator suffixes, longest first where one ends with another
+     */
+    private static final String[][] OPERATORS = {
+            {"IsNotNull", "is not null"},
+            {"NotNull", "is not null"},
+            {"IsNull", "is null"},
+            {"Null", "is null"},
+            {"IsTrue", "= true"},
+            {"True", "= true"},
+            {"IsFalse", "= false"},
+            {"False", "= false"},
+            {"GreaterThanEqual", ">="},
+            {"GreaterThan", ">"},
+            {"LessThanEqual", "<="},
+            {"LessThan", "<"},
+            {"After", ">"},
+            {"Before", "<"},
+            {"Between", "between"},
+            {"NotLike", "not like"},
+            {"Like", "like"},
+            {"StartingWith", "like"},
+            {"EndingWith", "like"},
+            {"Containing", "like"},
+            {"NotIn", "not in"},
+            {"In", "in"},
+            {"Not", "<>"},
+            {"Equals", "="},
+            {"Is", "="},
+    };
+
+    private static final String ALIAS = "x";
+
+    private static final Map<Method, DerivedQuery> QUERIES = new ConcurrentHashMap<Method, DerivedQuery>();
+
+    private static final Map<String, String> PATTERNS = new HashMap<String, String>();
+
+    static {
+        PATTERNS.put("StartingWith", "?%");
+        PATTERNS.put("EndingWith", "%?");
+        PATTERNS.put("Containing", "%?%");
+    }
+
+    private static final char ESCAPE = '\\';
+
+    private static final DerivedQuery NONE = new DerivedQuery(null, null, null, null, false);
+
+    private final Kind kind;
+    private final String name;
+    private final String jpql;
+    private final String[] patterns;
+    private final Set<String> inLists;
+    private final boolean count;
+
+    private DerivedQuery(final Kind kind, final String name, final String jpql, final String[] patterns, final boolean count) {
+        this.kind = kind;
+        this.name = name;
+        this.jpql = jpql;
+        this.patterns = patterns;
+        this.count = count;
+        this.inLists = (jpql == null) ? null : Jpql.inParameters(jpql);
+    }
+
+    /**
+     * The derived query for the method, or null if the method name does
+     * not follow the naming pattern.
+     *
+     * @param em
+     * @param method
+     * @return
+     * @throws ValidationException if the name follows the pattern but does not match the entity
+     */
+    public static DerivedQuery of(final EntityManager em, final Method method) {
+        DerivedQuery query = QUERIES.get(method);
+
+        if (query == null) {
+            final Matcher matcher = NAME.matcher(method.getName());
+            query = (matcher.matches()) ? parse(em, method, matcher) : NONE;
+
+            if (query != NONE) {
+                Queries.register(query.name, query.jpql);
+            }
+
+            QUERIES.put(method, query);
+        }
+
+        return (query == NONE) ? null : query;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getJpql() {
+        return jpql;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Does the query select a count, rather than entities or ids?
+     *
+     * @return
+     */
+    public boolean isCount() {
+        return count;
+    }
+
+    /**
+     * Bind the method arguments to the positional parameters in order
+     *
+     * @param query
+     * @param method
+     * @param args
+     */
+    public void bind(final Query query, final Method method, final Object[] args) {
+        int position = 1;
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            if (isPaging(parameter)) {
+                continue;
+            }
+
+            if (parameter.getValue() == null) {
+                throw new ValidationException("Argument " + position + " of " + method.getName() + " is null");
+            }
+
+            final String pattern = patterns[position - 1];
+            final Object value;
+            if (pattern != null) {
+                value = pattern.replace("?", escape(parameter.getValue().toString()));
+            } else if (inLists.contains(String.valueOf(position))) {
+                value = InLists.pad(parameter.getValue());
+            } else {
+                value = parameter.getValue();
+            }
+
+            query.setParameter(position++, value);
+        }
+    }
+
+    private static DerivedQuery parse(final EntityManager em, final Method method, final Matcher matcher) {
+        final Kind kind = Kind.valueOf(matcher.group(1).toUpperCase());
+        final String subject = matcher.group(2);
+        final String criteria = matcher.group(3);
+        final String order = matcher.group(4);
+        final Class<?> entity = entity(em, method, kind);
+        final String entityName = em.getMetamodel().entity(entity).getName();
+
+        // not a constant, some providers bind those as parameters that databases then refuse to select
+        final String id = (kind == Kind.EXISTS) ? Queries.idAttribute(em, entityName) : null;
+
+        final StringBuilder jpql = new StringBuilder();
+        switch (kind) {
+            case FIND:
+                jpql.append("select ");
+                if (subject != null && subject.contains("Distinct")) {
+                    jpql.append("distinct ");
+                }
+                jpql.append(ALIAS);
+                break;
+            case EXISTS:
+                if (id != null) {
+                    jpql.append("select ").append(ALIAS).append('.').append(id);
+                    break;
+                }
+                jpql.append("select count(").append(ALIAS).append(")");
+                break;
+            case COUNT:
+                jpql.append("select count(").append(ALIAS).append(")");
+                break;
+            case DELETE:
+                jpql.append("delete");
+                break;
+            default:
+                throw new IllegalStateException(kind.name());
+        }
+
+        jpql.append(" from ").append(entityName).append(' ').append(ALIAS);
+
+        final List<String> patterns = new ArrayList<String>();
+
+        if (criteria != null) {
+            jpql.append(" where ");
+
+            final String[] disjunction = OR.split(criteria);
+            for (int i = 0; i < disjunction.length; i++) {
+                if (i > 0) {
+                    jpql.append(" or ");
+                }
+
+                final String[] conjunction = AND.split(disjunction[i]);
+                if (disjunction.length > 1 && conjunction.length > 1) {
+                    jpql.append('(');
+                }
+
+                for (int j = 0; j < conjunction.length; j++) {
+                    if (j > 0) {
+                        jpql.append(" and ");
+                    }
+                    predicate(em, entity, method, conjunction[j], patterns, jpql);
+                }
+
+                if (disjunction.length > 1 && conjunction.length > 1) {
+                    jpql.append(')');
+                }
+            }
+        }
+
+        if (order != null) {
+            if (kind != Kind.FIND) {
+                throw new ValidationException("OrderBy only applies to find methods: " + method.getName());
+            }
+
+            jpql.append(" order by ");
+
+            final Matcher orders = ORDER.matcher(order);
+            int end = 0;
+            while (orders.find()) {
+                if (end > 0) {
+                    jpql.append(", ");
+                }
+                jpql.append(ALIAS).append('.').append(property(em, entity, method, orders.group(1)));
+                jpql.append("Desc".equals(orders.group(2)) ? " desc" : " asc");
+                end = orders.end();
+            }
+
+            if (end != order.length()) {
+                throw new ValidationException("Cannot parse OrderBy of " + method.getName());
+            }
+        }
+
+        int arguments = 0;
+        for (final Parameter parameter : Reflection.params(method, new Object[method.getParameterTypes().length])) {
+            if (!isPaging(parameter)) {
+                arguments++;
+            }
+        }
+
+        if (arguments != patterns.size()) {
+            throw new ValidationException(method.getName() + " expects " + patterns.size() + " arguments, but declares " + arguments);
+        }
+
+        final String name = method.getDeclaringClass().getName() + "." + method.getName();
+        final boolean count = kind == Kind.COUNT || (kind == Kind.EXISTS && id == null);
+        return new DerivedQuery(kind, name, jpql.toString(), patterns.toArray(new String[0]), count);
+    }
+
+    /**
+     * The value with the like wildcards and the escape character itself escaped
+     */
+    private static String escape(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ESCAPE || c == '%' || c == '_') {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * Append one property predicate and the like pattern, if any, of each parameter it uses
+     */
+    private static void predicate(final EntityManager em, final Class<?> entity, final Method method,
+                                  final String expression, final List<String> patterns, final StringBuilder jpql) {
+        String suffix = "";
+        String operator = "=";
+
+        for (final String[] candidate : OPERATORS) {
+            if (expression.endsWith(candidate[0]) && expression.length() > candidate[0].length()) {
+                suffix = candidate[0];
+                operator = candidate[1];
+                break;
+            }
+        }
+
+        final String property = property(em, entity, method, expression.substring(0, expression.length() - suffix.length()));
+        jpql.append(ALIAS).append('.').append(property).append(' ').append(operator);
+
+        if (operator.startsWith("is ") || operator.endsWith("true") || operator.endsWith("false")) {
+            return;
+        }
+
+        if ("Between".equals(suffix)) {
+            patterns.add(null);
+            jpql.append(" ?").append(patterns.size());
+            patterns.add(null);
+            jpql.append(" and ?").append(patterns.size());
+        } else {
+            // like patterns are completed when binding, not all providers accept concat there
+            patterns.add(PATTERNS.get(suffix));
+            jpql.append(" ?").append(patterns.size());
+
+            if (PATTERNS.containsKey(suffix)) {
+                jpql.append(" escape '").append(ESCAPE).append('\'');
+            }
+        }
+    }
+
+    private static String property(final EntityManager em, final Class<?> entity, final Method method, final String capitalized) {
+        final String property = Character.toLowerCase(capitalized.charAt(0)) + capitalized.substring(1);
+
+        try {
+            em.getMetamodel().entity(entity).getAttribute(property);
+        } catch (final IllegalArgumentException e) {
+            throw new ValidationException(entity.getSimpleName() + " has no property " + property + " used by " + method.getName());
+        }
+
+        return property;
+    }
+
+    private static Class<?> entity(final EntityManager em, final Method method, final Kind kind) {
+        if (kind == Kind.FIND) {
+            final Class<?> type = Reflection.elementType(method);
+            if (Queries.isManaged(em, type)) {
+                return type;
+            }
+        }
+
+        return Queries.entityType(method);
+    }
+
+    private static boolean isPaging(final Parameter parameter) {
+        return parameter.isAnnotationPresent(Offset.class) || parameter.isAnnotationPresent(MaxResults.class);
+    }
+}
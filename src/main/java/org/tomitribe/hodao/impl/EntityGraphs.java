@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.FetchGraph;
+import org.tomitribe.hodao.LoadGraph;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityGraph;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.Subgraph;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.ManagedType;
+import jakarta.persistence.metamodel.PluralAttribute;
+import jakarta.persistence.metamodel.SingularAttribute;
+import jakarta.persistence.metamodel.Type;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The entity graph of a @FetchGraph or @LoadGraph method, resolved or
+ * built on first use and then passed as a hint on every call.
+ *
+ * @version $Revision$ $Date$
+ */
+public class EntityGraphs {
+
+    private static final Map<Method, EntityGraphs> GRAPHS = new ConcurrentHashMap<Method, EntityGraphs>();
+
+    private static final EntityGraphs NONE = new EntityGraphs(null, null);
+
+    private final String hint;
+    private final EntityGraph<?> graph;
+
+    private EntityGraphs(final String hint, final EntityGraph<?> graph) {
+        this.hint = hint;
+        this.graph = graph;
+    }
+
+    /**
+     * The graph of the method, or null if it has none or the provider
+     * does not support entity graphs
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static EntityGraphs of(final EntityManager em, final Method method) {
+        EntityGraphs graphs = GRAPHS.get(method);
+
+        if (graphs == null) {
+            graphs = build(em, method);
+            GRAPHS.put(method, graphs);
+        }
+
+        return (graphs == NONE) ? null : graphs;
+    }
+
+    public void apply(final Query query) {
+        query.setHint(hint, graph);
+    }
+
+    /**
+     * The graph as properties for EntityManager.find
+     *
+     * @return
+     */
+    public Map<String, Object> properties() {
+        return Collections.<String, Object>singletonMap(hint, graph);
+    }
+
+    private static EntityGraphs build(final EntityManager em, final Method method) {
+        final FetchGraph fetchGraph = method.getAnnotation(FetchGraph.class);
+        final LoadGraph loadGraph = method.getAnnotation(LoadGraph.class);
+
+        if (fetchGraph == null && loadGraph == null) {
+            return NONE;
+        }
+
+        if (fetchGraph != null && loadGraph != null) {
+            throw new ValidationException(method.getName() + " has both @FetchGraph and @LoadGraph");
+        }
+
+        final String hint = (fetchGraph != null) ? "jakarta.persistence.fetchgraph" : "jakarta.persistence.loadgraph";
+        final String name = (fetchGraph != null) ? fetchGraph.value() : loadGraph.value();
+        final String[] attributes = (fetchGraph != null) ? fetchGraph.attributes() : loadGraph.attributes();
+
+        if ((name.length() > 0) == (attributes.length > 0)) {
+            throw new ValidationException(method.getName() + " must name a graph or list attributes, not both or neither");
+        }
+
+        final Class<?> type = CompletableFuture.class.equals(method.getReturnType())
+                ? Reflection.typeArgument(method.getGenericReturnType())
+                : Reflection.elementType(method);
+
+        if (!Queries.isManaged(em, type)) {
+            throw new ValidationException(method.getName() + " does not return entities, an entity graph does not apply");
+        }
+
+        final ManagedType<?> root = em.getMetamodel().entity(type);
+        for (final String path : attributes) {
+            validate(root, path, method);
+        }
+
+        try {
+
+            if (name.length() > 0) {
+                return new EntityGraphs(hint, em.getEntityGraph(name));
+            }
+
+            return new EntityGraphs(hint, graph(em, type, attributes));
+
+        } catch (final UnsupportedOperationException e) {
+
+            // the provider has no entity graphs, the results are the same without the hint
+            return NONE;
+
+        } catch (final IllegalArgumentException e) {
+
+            throw new ValidationException("Cannot find entity graph " + name + " used by " + method.getName());
+        }
+    }
+
+    private static EntityGraph<?> graph(final EntityManager em, final Class<?> type, final String[] attributes) {
+        final EntityGraph<?> graph = em.createEntityGraph(type);
+        final Map<String, Subgraph<?>> subgraphs = new HashMap<String, Subgraph<?>>();
+
+        for (final String path : attributes) {
+            final int dot = path.lastIndexOf('.');
+
+            if (dot < 0) {
+                graph.addAttributeNodes(path);
+            } else {
+                subgraph(graph, subgraphs, path.substring(0, dot)).addAttributeNodes(path.substring(dot + 1));
+            }
+        }
+
+        return graph;
+    }
+
+    private static Subgraph<?> subgraph(final EntityGraph<?> graph, final Map<String, Subgraph<?>> subgraphs, final String path) {
+        Subgraph<?> subgraph = subgraphs.get(path);
+
+        if (subgraph == null) {
+            final int dot = path.lastIndexOf('.');
+
+            if (dot < 0) {
+                subgraph = graph.addSubgraph(path);
+            } else {
+                subgraph = subgraph(graph, subgraphs, path.substring(0, dot)).addSubgraph(path.substring(dot + 1));
+            }
+
+            subgraphs.put(path, subgraph);
+        }
+
+        return subgraph;
+    }
+
+    /**
+     * Check each step of the path is an attribute, and each but the
+     * last one leads to an entity or embeddable
+     */
+    private static void validate(final ManagedType<?> root, final String path, final Method method) {
+        ManagedType<?> type = root;
+
+        for (final String name : path.split("\\.")) {
+            if (type == null) {
+                throw new ValidationException(path + " used by " + method.getName() + " goes through a basic attribute");
+            }
+
+            final Attribute<?, ?> attribute;
+            try {
+                attribute = type.getAttribute(name);
+            } catch (final IllegalArgumentException e) {
+                throw new ValidationException(root.getJavaType().getSimpleName() + " has no property " + path + " used by " + method.getName());
+            }
+
+            final Type<?> target = (attribute instanceof PluralAttribute)
+                    ? ((PluralAttribute<?, ?, ?>) attribute).getElementType()
+                    : ((SingularAttribute<?, ?>) attribute).getType();
+
+            type = (target instanceof ManagedType) ? (ManagedType<?>) target : null;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Export;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Writes query results for @Export methods.  The columns, and the
+ * select that reads them, are worked out once per method.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Exporter {
+
+    private static final Map<Method, Exporter> EXPORTERS = new ConcurrentHashMap<Method, Exporter>();
+
+    private final Export.Format format;
+    private final boolean header;
+    private final int sink;
+    private final String[] names;
+
+    /**
+     * The select to run.  An entity select is turned into a select of
+     * its basic attributes, so no entity is loaded into the caller's
+     * persistence context just to be written out.
+     */
+    private final String jpql;
+
+    private Exporter(final Export export, final int sink, final String[] names, final String jpql) {
+        this.format = export.value();
+        this.header = export.header();
+        this.sink = sink;
+        this.names = names;
+        this.jpql = jpql;
+    }
+
+    /**
+     * The exporter of the method, built on first use
+     *
+     * @param em
+     * @param method
+     * @param jpql the select the method runs
+     * @return
+     */
+    public static Exporter of(final EntityManager em, final Method method, final String jpql) {
+        Exporter exporter = EXPORTERS.get(method);
+
+        if (exporter == null) {
+            exporter = build(em, method, jpql);
+            EXPORTERS.put(method, exporter);
+        }
+
+        return exporter;
+    }
+
+    /**
+     * The select to create the query passed to {@link #export} from
+     *
+     * @return
+     */
+    public String getJpql() {
+        return jpql;
+    }
+
+    /**
+     * Stream the results of the query to the sink among the arguments
+     *
+     * @param query created from {@link #getJpql()}
+     * @param args
+     * @return the number of rows written
+     * @throws IOException
+     */
+    public long export(final Query query, final Object[] args) throws IOException {
+        final Object target = args[sink];
+        if (target == null) {
+            throw new ValidationException("Cannot export to null");
+        }
+
+        final Writer writer = (target instanceof Writer)
+                ? new BufferedWriter((Writer) target)
+                : new BufferedWriter(new OutputStreamWriter((OutputStream) target, StandardCharsets.UTF_8));
+
+        final Object[] values = new Object[names.length];
+        long count = 0;
+
+        begin(writer);
+
+        try (Stream<?> rows = query.getResultStream()) {
+            final Iterator<?> iterator = rows.iterator();
+
+            while (iterator.hasNext()) {
+                final Object row = iterator.next();
+
+                if (names.length == 1) {
+                    values[0] = row;
+                } else {
+                    System.arraycopy((Object[]) row, 0, values, 0, values.length);
+                }
+
+                write(writer, values, count++);
+            }
+        }
+
+        end(writer);
+        writer.flush();
+
+        return count;
+    }
+
+    private void begin(final Writer writer) throws IOException {
+        if (format == Export.Format.JSON) {
+            writer.write('[');
+        } else if (header) {
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                csv(writer, names[i]);
+            }
+            writer.write("\r\n");
+        }
+    }
+
+    private void write(final Writer writer, final Object[] values, final long index) throws IOException {
+        if (format == Export.Format.JSON) {
+            if (index > 0) {
+                writer.write(',');
+            }
+
+            writer.write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                json(writer, names[i]);
+                writer.write(':');
+                jsonValue(writer, values[i]);
+            }
+            writer.write('}');
+
+        } else {
+
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                if (values[i] != null) {
+                    csv(writer, values[i].toString());
+                }
+            }
+            writer.write("\r\n");
+        }
+    }
+
+    private void end(final Writer writer) throws IOException {
+        if (format == Export.Format.JSON) {
+            writer.write(']');
+        }
+    }
+
+    /**
+     * Quoted only when it has to be, as RFC 4180 puts it
+     */
+    private static void csv(final Writer writer, final String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void jsonValue(final Writer writer, final Object value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Number) {
+            final double number = ((Number) value).doubleValue();
+            writer.write((Double.isNaN(number) || Double.isInfinite(number)) ? "null" : value.toString());
+        } else {
+            json(writer, value.toString());
+        }
+    }
+
+    private static void json(final Writer writer, final String value) throws IOException {
+        writer.write('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c == '\n') {
+                writer.write("\\n");
+            } else if (c == '\r') {
+                writer.write("\\r");
+            } else if (c == '\t') {
+                writer.write("\\t");
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+
+        writer.write('"');
+    }
+
+    private static Exporter build(final EntityManager em, final Method method, final String jpql) {
+        final Export export = method.getAnnotation(Export.class);
+
+        int sink = -1;
+        final Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (OutputStream.class.isAssignableFrom(types[i]) || Writer.class.isAssignableFrom(types[i])) {
+                sink = i;
+            }
+        }
+
+        if (sink < 0) {
+            throw new ValidationException(method.getName() + " has no OutputStream or Writer parameter to export to");
+        }
+
+        final String variable = Jpql.selectedVariable(jpql);
+        if (variable != null && variable.equals(Jpql.fromVariable(jpql))) {
+            final EntityType<?> entity = Queries.entity(em, Jpql.fromEntity(jpql));
+            if (entity == null) {
+                throw new ValidationException("Cannot find the entity " + jpql + " selects");
+            }
+
+            final List<String> names = new ArrayList<String>();
+            final List<String> paths = new ArrayList<String>();
+
+            for (final Field field : fields(entity.getJavaType())) {
+                final Attribute<?, ?> attribute;
+                try {
+                    attribute = entity.getAttribute(field.getName());
+                } catch (final IllegalArgumentException e) {
+                    continue;
+                }
+
+                if (attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                    names.add(attribute.getName());
+                    paths.add(variable + "." + attribute.getName());
+                }
+            }
+
+            if (names.isEmpty()) {
+                throw new ValidationException("Cannot export the results of " + jpql + ", " + entity.getName() + " has no basic attributes");
+            }
+
+            return new Exporter(export, sink, names.toArray(new String[0]), Jpql.replaceSelectClause(jpql, String.join(", ", paths)));
+        }
+
+        final List<String> items = Jpql.selectItems(jpql);
+        if (items.isEmpty()) {
+            throw new ValidationException("Cannot export the results of " + jpql);
+        }
+
+        final String[] names = new String[items.size()];
+        for (int i = 0; i < names.length; i++) {
+            final String name = Jpql.itemName(items.get(i));
+            names[i] = (name != null) ? name : "column" + (i + 1);
+        }
+
+        return new Exporter(export, sink, names, jpql);
+    }
+
+    /**
+     * The fields of the class and its superclasses, superclass fields first
+     */
+    private static List<Field> fields(final Class<?> type) {
+        final List<Field> fields = new ArrayList<Field>();
+
+        if (type != null && !Object.class.equals(type)) {
+            fields.addAll(fields(type.getSuperclass()));
+            for (final Field field : type.getDeclaredFields()) {
+                fields.add(field);
+            }
+        }
+
+        return fields;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Filter;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+
+import jakarta.persistence.Query;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The @Filter parameters of a method and the query variants built
+ * from them.  Which filters are present is encoded as a bitmask and
+ * the JPQL for each mask is built once, then reused.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Filters {
+
+    private static final Pattern NAMED_PARAMETER = Pattern.compile(":([A-Za-z_$][\\w$]*)");
+
+    private static final Map<Method, Filters> FILTERS = new ConcurrentHashMap<Method, Filters>();
+
+    private static final Filters NONE = new Filters(new int[0], new String[0], new String[0]);
+
+    private final int[] indexes;
+    private final String[] predicates;
+    private final String[] names;
+    private final Map<Integer, String> variants = new ConcurrentHashMap<Integer, String>();
+
+    private Filters(final int[] indexes, final String[] predicates, final String[] names) {
+        this.indexes = indexes;
+        this.predicates = predicates;
+        this.names = names;
+    }
+
+    /**
+     * The filters of the method or null if it has none
+     *
+     * @param method
+     * @return
+     */
+    public static Filters of(final Method method) {
+        Filters filters = FILTERS.get(method);
+
+        if (filters == null) {
+            filters = parse(method);
+            FILTERS.put(method, filters);
+        }
+
+        return (filters == NONE) ? null : filters;
+    }
+
+    /**
+     * The variant of the query for the filters present in the arguments
+     *
+     * @param jpql the query without any filters, the same each call
+     * @param args
+     * @return
+     */
+    public String jpql(final String jpql, final Object[] args) {
+        int mask = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (args[indexes[i]] != null) {
+                mask |= 1 << i;
+            }
+        }
+
+        String variant = variants.get(mask);
+
+        if (variant == null) {
+            final List<String> conditions = new ArrayList<String>();
+            for (int i = 0; i < indexes.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    conditions.add(predicates[i]);
+                }
+            }
+
+            variant = Jpql.addConditions(jpql, conditions);
+            variants.put(mask, variant);
+        }
+
+        return variant;
+    }
+
+    /**
+     * Bind the arguments of the filters that are present
+     *
+     * @param query
+     * @param args
+     */
+    public void bind(final Query query, final Object[] args) {
+        for (int i = 0; i < indexes.length; i++) {
+            final Object value = args[indexes[i]];
+            if (value != null) {
+                query.setParameter(names[i], value);
+            }
+        }
+    }
+
+    private static Filters parse(final Method method) {
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<String> predicates = new ArrayList<String>();
+        final List<String> names = new ArrayList<String>();
+
+        final Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (final Annotation annotation : annotations[i]) {
+                if (!(annotation instanceof Filter)) {
+                    continue;
+                }
+
+                final String predicate = ((Filter) annotation).value();
+                final Matcher matcher = NAMED_PARAMETER.matcher(predicate);
+                if (!matcher.find()) {
+                    throw new ValidationException("@Filter(\"" + predicate + "\") of " + method.getName() + " names no parameter");
+                }
+
+                final String name = matcher.group(1);
+                while (matcher.find()) {
+                    if (!name.equals(matcher.group(1))) {
+                        throw new ValidationException("@Filter(\"" + predicate + "\") of " + method.getName() + " names more than one parameter");
+                    }
+                }
+
+                indexes.add(i);
+                predicates.add(predicate);
+                names.add(name);
+            }
+        }
+
+        if (indexes.isEmpty()) {
+            return NONE;
+        }
+
+        if (indexes.size() >= Integer.SIZE) {
+            throw new ValidationException(method.getName() + " has more filters than supported");
+        }
+
+        final int[] positions = new int[indexes.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = indexes.get(i);
+        }
+
+        return new Filters(positions, predicates.toArray(new String[0]), names.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the entities of one type queued in a FindBatch.
+ *
+ * @version $Revision$ $Date$
+ */
+public class FindBatching {
+
+    private FindBatching() {
+    }
+
+    /**
+     * The entities with the specified ids, by id.  Ids not found are absent.
+     *
+     * @param em
+     * @param type
+     * @param ids distinct ids
+     * @return
+     */
+    public static Map<Object, Object> find(final EntityManager em, final Class<?> type, final Collection<Object> ids) {
+        final Map<Object, Object> found = new HashMap<Object, Object>();
+        final EntityType<?> entity = em.getMetamodel().entity(type);
+        final SingularAttribute<?, ?> id = Queries.idAttribute(entity);
+
+        // composite ids cannot be listed with IN
+        if (id == null || ids.size() == 1) {
+            for (final Object key : ids) {
+                final Object object = em.find(type, key, Timeouts.properties());
+                if (object != null) {
+                    found.put(key, object);
+                }
+            }
+            return found;
+        }
+
+        final Query query = em.createQuery("select x from " + entity.getName() + " x where x." + id.getName() + " in :ids");
+
+        for (final List<Object> chunk : InLists.chunks(ids)) {
+            query.setParameter("ids", chunk);
+            Timeouts.apply(query);
+
+            for (final Object object : query.getResultList()) {
+                found.put(Reflection.get(id.getJavaMember(), object), object);
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Count;
+import org.tomitribe.hodao.Exists;
+import org.tomitribe.hodao.NativeQuery;
+import org.tomitribe.hodao.util.Jpql;
+
+import jakarta.persistence.EntityManager;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collection arguments bound to IN lists.  Providers expand these into
+ * one JDBC parameter per element, so every distinct size is a distinct
+ * statement, and databases cap the number of elements or parameters.
+ * <p/>
+ * Lists are padded to a few bucket sizes by repeating the last element,
+ * which does not change what IN matches, and lists larger than the
+ * largest bucket are split into chunks to be run one after the other.
+ * A NOT IN list is padded the same way but never split, as every chunk
+ * would match the rows the other chunks exclude.
+ * Only parameters that make up a whole IN list of a JPQL query are
+ * treated so, never those of native queries, MEMBER OF and the like.
+ *
+ * @version $Revision$ $Date$
+ */
+public class InLists {
+
+    /**
+     * Oracle allows at most 1000 elements in an IN list
+     */
+    private static final int[] BUCKETS = {10, 50, 100, 500, 1000};
+
+    public static final int MAX = BUCKETS[BUCKETS.length - 1];
+
+    private static final Map<Method, Set<String>> PARAMETERS = new ConcurrentHashMap<Method, Set<String>>();
+
+    private static final Map<Method, Set<String>> NEGATED = new ConcurrentHashMap<Method, Set<String>>();
+
+    private InLists() {
+    }
+
+    /**
+     * The names, or positions, of the parameters the method's query
+     * binds to IN lists, found once per method
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static Set<String> parameters(final EntityManager em, final Method method) {
+        Set<String> parameters = PARAMETERS.get(method);
+
+        if (parameters == null) {
+            final String jpql = jpql(em, method);
+            parameters = (jpql == null) ? Collections.<String>emptySet() : Jpql.inParameters(jpql);
+            PARAMETERS.put(method, parameters);
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Those of the parameters() bound to NOT IN lists, which cannot be
+     * split into chunks
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static Set<String> negated(final EntityManager em, final Method method) {
+        Set<String> parameters = NEGATED.get(method);
+
+        if (parameters == null) {
+            final String jpql = jpql(em, method);
+            parameters = (jpql == null) ? Collections.<String>emptySet() : Jpql.notInParameters(jpql);
+            NEGATED.put(method, parameters);
+        }
+
+        return parameters;
+    }
+
+    private static String jpql(final EntityManager em, final Method method) {
+        if (method.isAnnotationPresent(NativeQuery.class)) {
+            return null;
+        }
+
+        if (method.isAnnotationPresent(Count.class) || method.isAnnotationPresent(Exists.class)) {
+            return CountQuery.of(em, method).getJpql();
+        }
+
+        return Queries.jpql(em, method);
+    }
+
+    /**
+     * Is the collection too large for a single IN list?
+     *
+     * @param value
+     * @return
+     */
+    public static boolean isOversized(final Object value) {
+        return value instanceof Collection && ((Collection<?>) value).size() > MAX;
+    }
+
+    /**
+     * The value to bind.  Collections no larger than the largest bucket
+     * are padded to the next bucket size, anything else is unchanged.
+     *
+     * @param value
+     * @return
+     */
+    public static Object pad(final Object value) {
+        if (!(value instanceof Collection)) {
+            return value;
+        }
+
+        final Collection<?> values = (Collection<?>) value;
+        if (values.isEmpty() || values.size() > MAX) {
+            return value;
+        }
+
+        return pad(new ArrayList<Object>(new LinkedHashSet<Object>(values)));
+    }
+
+    /**
+     * Split the collection into padded chunks of at most MAX elements.
+     * Duplicates are dropped first, so no element is in two chunks.
+     *
+     * @param values
+     * @return
+     */
+    public static List<List<Object>> chunks(final Collection<?> values) {
+        final List<Object> distinct = new ArrayList<Object>(new LinkedHashSet<Object>(values));
+        final List<List<Object>> chunks = new ArrayList<List<Object>>();
+
+        for (int i = 0; i < distinct.size(); i += MAX) {
+            chunks.add(pad(new ArrayList<Object>(distinct.subList(i, Math.min(i + MAX, distinct.size())))));
+        }
+
+        return chunks;
+    }
+
+    private static List<Object> pad(final List<Object> values) {
+        final int size = bucket(values.size());
+        final Object last = values.get(values.size() - 1);
+
+        while (values.size() < size) {
+            values.add(last);
+        }
+
+        return values;
+    }
+
+    private static int bucket(final int size) {
+        for (final int bucket : BUCKETS) {
+            if (size <= bucket) {
+                return bucket;
+            }
+        }
+        return size;
+    }
+}
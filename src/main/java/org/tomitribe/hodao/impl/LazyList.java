@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The List returned by @Lazy methods.  It holds the page last read and
+ * the future of the page after it, which is requested as soon as the
+ * page before is read.  Reading elements never needs the size, which
+ * is a count query run only when asked for and not already known from
+ * reaching the last page.
+ *
+ * @version $Revision$ $Date$
+ */
+public class LazyList extends AbstractList<Object> {
+
+    private final EntityManagerFactory emf;
+    private final ExecutorService executor;
+    private final PagedQuery query;
+    private final int offset;
+    private final int limit;
+    private final int pageSize;
+
+    private int size = -1;
+    private int pageIndex = -1;
+    private List<Object> page;
+    private int prefetchIndex = -1;
+    private Future<List<Object>> prefetch;
+
+    public LazyList(final EntityManager em, final PagedQuery query, final int offset, final int limit, final int pageSize) {
+        this.emf = em.getEntityManagerFactory();
+        this.executor = Concurrency.executor();
+        this.query = query;
+        this.offset = offset;
+        this.limit = limit;
+        this.pageSize = pageSize;
+
+        prefetch(0);
+    }
+
+    @Override
+    public Object get(final int index) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        final List<Object> read = page(index / pageSize);
+
+        if (index % pageSize >= read.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        return read.get(index % pageSize);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return page(0).isEmpty();
+    }
+
+    @Override
+    public synchronized int size() {
+        if (size < 0) {
+            final EntityManager em = emf.createEntityManager();
+            try {
+                final long total = query.count(em, Deadline.current());
+                size = (int) Math.max(0, Math.min(total - offset, limit));
+            } finally {
+                em.close();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Reads page after page without needing the size
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index % pageSize < page(index / pageSize).size();
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final Object next = page(index / pageSize).get(index % pageSize);
+                index++;
+                return next;
+            }
+        };
+    }
+
+    private synchronized List<Object> page(final int index) {
+        if (index == pageIndex) {
+            return page;
+        }
+
+        final List<Object> read;
+        if (index == prefetchIndex) {
+            read = await(prefetch);
+        } else {
+            cancelPrefetch();
+            read = read(index, Deadline.current());
+        }
+
+        pageIndex = index;
+        page = read;
+
+        if (read.size() == length(index)) {
+            prefetch(index + 1);
+        } else {
+            // a short page is the last one
+            size = index * pageSize + read.size();
+            cancelPrefetch();
+        }
+
+        return read;
+    }
+
+    private void prefetch(final int index) {
+        if (length(index) <= 0) {
+            prefetchIndex = -1;
+            prefetch = null;
+            return;
+        }
+
+        // read on another thread within the deadline of the thread asking
+        final Deadline deadline = Deadline.current();
+
+        prefetchIndex = index;
+        prefetch = executor.submit(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() {
+                return read(index, deadline);
+            }
+        });
+    }
+
+    private void cancelPrefetch() {
+        if (prefetch != null) {
+            prefetch.cancel(true);
+        }
+
+        prefetchIndex = -1;
+        prefetch = null;
+    }
+
+    /**
+     * The number of results page should have if there are enough
+     */
+    private int length(final int index) {
+        return (int) Math.min(pageSize, (long) limit - (long) index * pageSize);
+    }
+
+    private List<Object> read(final int index, final Deadline deadline) {
+        final int length = length(index);
+        if (length <= 0) {
+            return Collections.emptyList();
+        }
+
+        final EntityManager em = emf.createEntityManager();
+        try {
+            return query.read(em, offset + index * pageSize, length, deadline);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static List<Object> await(final Future<List<Object>> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading a page", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Lock;
+import org.tomitribe.hodao.ValidationException;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.Query;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The lock mode and lock hints of a @Lock method, worked out once
+ * per method.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Locking {
+
+    private static final String TIMEOUT = "jakarta.persistence.lock.timeout";
+
+    /**
+     * The lock timeout Hibernate reads as SKIP LOCKED
+     */
+    private static final int SKIP_LOCKED = -2;
+
+    private static final Map<Method, Locking> LOCKS = new ConcurrentHashMap<Method, Locking>();
+
+    private static final Locking NONE = new Locking(null, Collections.<String, Object>emptyMap());
+
+    private final LockModeType mode;
+    private final Map<String, Object> hints;
+
+    private Locking(final LockModeType mode, final Map<String, Object> hints) {
+        this.mode = mode;
+        this.hints = hints;
+    }
+
+    /**
+     * The locking of the method or null if it is not @Lock
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static Locking of(final EntityManager em, final Method method) {
+        Locking locking = LOCKS.get(method);
+
+        if (locking == null) {
+            locking = build(em, method);
+            LOCKS.put(method, locking);
+        }
+
+        return (locking == NONE) ? null : locking;
+    }
+
+    public LockModeType getMode() {
+        return mode;
+    }
+
+    /**
+     * The lock hints as properties for EntityManager.find
+     *
+     * @return
+     */
+    public Map<String, Object> properties() {
+        return hints;
+    }
+
+    public void apply(final Query query) {
+        query.setLockMode(mode);
+
+        for (final Map.Entry<String, Object> hint : hints.entrySet()) {
+            query.setHint(hint.getKey(), hint.getValue());
+        }
+    }
+
+    private static Locking build(final EntityManager em, final Method method) {
+        final Lock lock = method.getAnnotation(Lock.class);
+
+        if (lock == null) {
+            return NONE;
+        }
+
+        final Map<String, Object> hints = new HashMap<String, Object>();
+
+        if (lock.skipLocked()) {
+            if (lock.value() != LockModeType.PESSIMISTIC_READ && lock.value() != LockModeType.PESSIMISTIC_WRITE) {
+                throw new ValidationException(method.getName() + " can only skip locked rows with a pessimistic lock");
+            }
+
+            if (lock.timeout() >= 0) {
+                throw new ValidationException(method.getName() + " skips locked rows, it cannot also wait for them");
+            }
+
+            if (!isHibernate(em)) {
+                throw new ValidationException(method.getName() + " cannot skip locked rows, the persistence provider does not support it");
+            }
+
+            hints.put(TIMEOUT, SKIP_LOCKED);
+
+        } else if (lock.timeout() >= 0) {
+
+            hints.put(TIMEOUT, lock.timeout());
+        }
+
+        return new Locking(lock.value(), Collections.unmodifiableMap(hints));
+    }
+
+    private static boolean isHibernate(final EntityManager em) {
+        return em.getDelegate().getClass().getName().startsWith("org.hibernate.");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.ValidationException;
+
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of @Memoize methods remembered for the current
+ * transaction, kept as a resource of the transaction in the
+ * TransactionSynchronizationRegistry.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Memoization {
+
+    /**
+     * The key of the remembered results among the transaction's resources
+     */
+    private static final Object RESULTS = new Object();
+
+    /**
+     * Stands for remembered nulls
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * Set once a @Memoize method has been called, until then there is
+     * nothing a write could invalidate
+     */
+    private static volatile boolean used;
+
+    private Memoization() {
+    }
+
+    public static Object invoke(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        if (Operations.isWrite(em, method)) {
+            throw new ValidationException(method.getName() + " cannot be @Memoize, it is not a read");
+        }
+
+        if (Operations.isSingleUse(method)) {
+            throw new ValidationException(method.getName() + " cannot be @Memoize, its results cannot be shared between callers");
+        }
+
+        used = true;
+
+        final Map<CallKey, Object> results = results(true);
+
+        if (results == null) {
+            return PersistenceHandler.dispatch(em, method, args);
+        }
+
+        final CallKey key = new CallKey(method, args);
+        final Object remembered = results.get(key);
+
+        if (remembered != null) {
+            return (remembered == NULL) ? null : Coalescing.share(remembered);
+        }
+
+        Object result = PersistenceHandler.dispatch(em, method, args);
+
+        if (result instanceof List) {
+            result = Collections.unmodifiableList((List<?>) result);
+        } else if (result instanceof Collection) {
+            result = Collections.unmodifiableCollection((Collection<?>) result);
+        }
+
+        results.put(key, (result == null) ? NULL : result);
+
+        return result;
+    }
+
+    /**
+     * Forget the results remembered in the current transaction, if any
+     */
+    public static void invalidate() {
+        if (!used) {
+            return;
+        }
+
+        final Map<CallKey, Object> results = results(false);
+
+        if (results != null) {
+            results.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<CallKey, Object> results(final boolean create) {
+        final TransactionSynchronizationRegistry registry = Transactions.inTransaction();
+
+        if (registry == null) {
+            return null;
+        }
+
+        Map<CallKey, Object> results = (Map<CallKey, Object>) registry.getResource(RESULTS);
+
+        if (results == null && create) {
+            // a transaction is used by one thread at a time
+            results = new HashMap<CallKey, Object>();
+            registry.putResource(RESULTS, results);
+        }
+
+        return results;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.ChunkBy;
+import org.tomitribe.hodao.Export;
+import org.tomitribe.hodao.Lazy;
+import org.tomitribe.hodao.NativeQuery;
+import org.tomitribe.hodao.Partitioned;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+
+/**
+ * What a @NativeQuery method returns, checked once per method.  SQL
+ * is handed to the provider as is, so the features that rewrite or
+ * re-run JPQL, and the result types built on them, are refused here
+ * rather than silently ignored.
+ *
+ * @version $Revision$ $Date$
+ */
+public class NativeStatement {
+
+    private static final Map<Method, NativeStatement> STATEMENTS = new ConcurrentHashMap<Method, NativeStatement>();
+
+    private static final List<Class<? extends Annotation>> UNSUPPORTED = Arrays.<Class<? extends Annotation>>asList(
+            Lazy.class, Export.class, ChunkBy.class, Partitioned.class);
+
+    private final boolean managed;
+
+    private NativeStatement(final boolean managed) {
+        this.managed = managed;
+    }
+
+    /**
+     * The statement of the @NativeQuery method
+     *
+     * @param em
+     * @param method
+     * @return
+     * @throws ValidationException if the method asks for something SQL cannot do here
+     */
+    public static NativeStatement of(final EntityManager em, final Method method) {
+        NativeStatement statement = STATEMENTS.get(method);
+
+        if (statement == null) {
+            statement = build(em, method);
+            STATEMENTS.put(method, statement);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Are the rows read as instances of the entity the method returns?
+     *
+     * @return
+     */
+    public boolean isManaged() {
+        return managed;
+    }
+
+    private static NativeStatement build(final EntityManager em, final Method method) {
+        final NativeQuery nativeQuery = method.getAnnotation(NativeQuery.class);
+
+        for (final Class<? extends Annotation> annotation : UNSUPPORTED) {
+            if (method.isAnnotationPresent(annotation)) {
+                throw new ValidationException(method.getName() + " cannot be both a @NativeQuery and @" + annotation.getSimpleName());
+            }
+        }
+
+        if (Filters.of(method) != null || Ordering.of(method) != null) {
+            throw new ValidationException(method.getName() + " cannot have @Filter or @OrderBy parameters, as SQL is not rewritten");
+        }
+
+        final Class<?> returnType = method.getReturnType();
+        if (Flow.Publisher.class.equals(returnType) || CompletableFuture.class.equals(returnType)) {
+            throw new ValidationException(method.getName() + " cannot return a " + returnType.getSimpleName() + " from a @NativeQuery");
+        }
+
+        if (nativeQuery.update()) {
+            return new NativeStatement(false);
+        }
+
+        final Class<?> elementType = Reflection.elementType(method);
+        final boolean mapped = nativeQuery.resultSetMapping().length() > 0 || !Void.TYPE.equals(nativeQuery.resultClass());
+
+        if (!mapped && Projection.isProjection(em, elementType)) {
+            throw new ValidationException(method.getName() + " cannot map SQL rows onto " + elementType.getSimpleName()
+                    + ", use a result set mapping");
+        }
+
+        return new NativeStatement(!mapped && Queries.isManaged(em, elementType));
+    }
+}
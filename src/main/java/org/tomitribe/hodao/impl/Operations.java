@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Export;
+import org.tomitribe.hodao.Lazy;
+import org.tomitribe.hodao.Merge;
+import org.tomitribe.hodao.NamedQuery;
+import org.tomitribe.hodao.NativeQuery;
+import org.tomitribe.hodao.Patch;
+import org.tomitribe.hodao.Persist;
+import org.tomitribe.hodao.QueryString;
+import org.tomitribe.hodao.Remove;
+import org.tomitribe.hodao.Upsert;
+
+import jakarta.persistence.EntityManager;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
+
+/**
+ * What kind of operation a DAO method is, for the features that treat
+ * reads and writes differently.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Operations {
+
+    private static final List<Class<? extends Annotation>> WRITES = Arrays.<Class<? extends Annotation>>asList(
+            Merge.class, Patch.class, Persist.class, Remove.class, Upsert.class);
+
+    private Operations() {
+    }
+
+    /**
+     * Does the method change data, be it through the EntityManager or an update statement?
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static boolean isWrite(final EntityManager em, final Method method) {
+        for (final Class<? extends Annotation> write : WRITES) {
+            if (method.isAnnotationPresent(write)) {
+                return true;
+            }
+        }
+
+        final NamedQuery namedQuery = method.getAnnotation(NamedQuery.class);
+        if (namedQuery != null) {
+            return namedQuery.update();
+        }
+
+        final QueryString queryString = method.getAnnotation(QueryString.class);
+        if (queryString != null) {
+            return queryString.update();
+        }
+
+        final NativeQuery nativeQuery = method.getAnnotation(NativeQuery.class);
+        if (nativeQuery != null) {
+            return nativeQuery.update();
+        }
+
+        final DerivedQuery derivedQuery = (PersistenceHandler.isOperation(method)) ? null : DerivedQuery.of(em, method);
+        return derivedQuery != null && derivedQuery.getKind() == DerivedQuery.Kind.DELETE;
+    }
+
+    /**
+     * Can the result of the method be consumed only once, is it still to be read when
+     * returned, as a batched @Find is, or is it not a result at all?
+     * Such results cannot be handed to more than one caller.
+     *
+     * @param method
+     * @return
+     */
+    public static boolean isSingleUse(final Method method) {
+        final Class<?> returnType = method.getReturnType();
+
+        return Stream.class.equals(returnType) || Flow.Publisher.class.equals(returnType) || CompletableFuture.class.equals(returnType)
+                || method.isAnnotationPresent(Lazy.class) || method.isAnnotationPresent(Export.class);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.OrderBy;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The @OrderBy parameter of a method and the sorted query variants.
+ * Each allowed expression and direction gets an index, and for each
+ * index the sorted JPQL is built once per base query.  The base
+ * queries themselves are a bounded set, one per @Filter combination.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Ordering {
+
+    private static final Map<Method, Ordering> ORDERINGS = new ConcurrentHashMap<Method, Ordering>();
+
+    private static final Ordering NONE = new Ordering(-1, new String[0]);
+
+    private final int index;
+    private final String[] items;
+    private final Map<String, Integer> keys = new HashMap<String, Integer>();
+    private final List<Map<String, String>> variants;
+
+    private Ordering(final int index, final String[] allowed) {
+        this.index = index;
+        this.items = new String[allowed.length * 2];
+        this.variants = new ArrayList<Map<String, String>>(items.length);
+
+        for (int i = 0; i < allowed.length; i++) {
+            final String expression = allowed[i].trim();
+            final String name = expression.substring(expression.lastIndexOf('.') + 1);
+
+            items[2 * i] = expression + " asc";
+            items[2 * i + 1] = expression + " desc";
+            variants.add(new ConcurrentHashMap<String, String>());
+            variants.add(new ConcurrentHashMap<String, String>());
+
+            // arguments are matched ignoring case
+            for (final String key : new String[]{expression.toLowerCase(), name.toLowerCase()}) {
+                final Integer taken = keys.get(key);
+                if (taken != null && taken != 2 * i) {
+                    throw new ValidationException("Cannot tell @OrderBy " + allowed[taken / 2].trim() + " and " + expression + " apart by " + key);
+                }
+
+                keys.put(key, 2 * i);
+                keys.put(key + " asc", 2 * i);
+                keys.put(key + " desc", 2 * i + 1);
+                keys.put("-" + key, 2 * i + 1);
+            }
+        }
+    }
+
+    /**
+     * The ordering of the method or null if it has no @OrderBy parameter
+     *
+     * @param method
+     * @return
+     */
+    public static Ordering of(final Method method) {
+        Ordering ordering = ORDERINGS.get(method);
+
+        if (ordering == null) {
+            ordering = parse(method);
+            ORDERINGS.put(method, ordering);
+        }
+
+        return (ordering == NONE) ? null : ordering;
+    }
+
+    /**
+     * The variant of the query sorted as the argument asks
+     *
+     * @param jpql
+     * @param args
+     * @return
+     * @throws ValidationException if the argument is not an allowed sort
+     */
+    public String jpql(final String jpql, final Object[] args) {
+        final Object sort = args[index];
+
+        if (sort == null) {
+            return jpql;
+        }
+
+        final Integer item = keys.get(sort.toString().trim().replaceAll("\\s+", " ").toLowerCase());
+        if (item == null) {
+            throw new ValidationException("Cannot order by " + sort);
+        }
+
+        final Map<String, String> cache = variants.get(item);
+        String variant = cache.get(jpql);
+
+        if (variant == null) {
+            variant = Jpql.replaceOrderBy(jpql, items[item]);
+            cache.put(jpql, variant);
+        }
+
+        return variant;
+    }
+
+    private static Ordering parse(final Method method) {
+        Ordering ordering = NONE;
+
+        final Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (final Annotation annotation : annotations[i]) {
+                if (!(annotation instanceof OrderBy)) {
+                    continue;
+                }
+
+                if (ordering != NONE) {
+                    throw new ValidationException(method.getName() + " has more than one @OrderBy parameter");
+                }
+
+                ordering = new Ordering(i, ((OrderBy) annotation).allowed());
+            }
+        }
+
+        return ordering;
+    }
+}
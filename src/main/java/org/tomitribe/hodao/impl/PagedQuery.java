@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A select read a page at a time after the call that returned it, on
+ * EntityManagers other than the caller's, as @Lazy lists and
+ * Flow.Publisher results are.  Every page is bound, given the entity
+ * graph and the time left on the reader's Deadline the same way.
+ * <p/>
+ * Pages only follow on from each other if the rows keep their order,
+ * so a query without an order by is ordered by the id of its entity,
+ * and one selecting an entity gets the id as the last sort key.  When
+ * every sort key is an attribute of the selected entity, the next page
+ * can also be read by key, as the rows after the last one read, which
+ * rows written meanwhile do not shift.
+ *
+ * @version $Revision$ $Date$
+ */
+public class PagedQuery {
+
+    private static final Pattern ORDER_ITEM = Pattern.compile("(?i)([A-Za-z_$][\\w$]*)\\.([A-Za-z_$][\\w$]*)(?:\\s+(asc|desc))?");
+
+    private static final String KEY = "hodaoKey";
+
+    private static final Map<String, Plan> PLANS = new ConcurrentHashMap<String, Plan>();
+
+    private final String jpql;
+    private final Plan plan;
+    private final Binder binder;
+    private final Projection projection;
+    private final EntityGraphs graphs;
+
+    /**
+     * @param em the caller's EntityManager
+     * @param method
+     * @param jpql the select, with any projection already applied
+     * @param binder
+     * @param projection
+     * @throws ValidationException if the select cannot be paged
+     */
+    public PagedQuery(final EntityManager em, final Method method, final String jpql, final Binder binder, final Projection projection) {
+        if (Locking.of(em, method) != null) {
+            throw new ValidationException(method.getName() + " cannot @Lock rows that are read after it returns");
+        }
+
+        this.jpql = jpql;
+        this.plan = plan(em, method, jpql);
+        this.binder = binder;
+        this.projection = projection;
+        this.graphs = (projection == null) ? EntityGraphs.of(em, method) : null;
+    }
+
+    /**
+     * Read one page by position
+     *
+     * @param em
+     * @param first the position of the first row
+     * @param max
+     * @param deadline of the reader, or null
+     * @return the rows, projected if the method asks for it
+     */
+    public List<Object> read(final EntityManager em, final int first, final int max, final Deadline deadline) {
+        final Query query = create(em, plan.ordered, deadline);
+        query.setFirstResult(first);
+        query.setMaxResults(max);
+
+        return map(query.getResultList());
+    }
+
+    /**
+     * The sort keys of a row read, or null if the next page cannot be
+     * read by key
+     *
+     * @param row
+     * @return
+     */
+    public Object[] key(final Object row) {
+        if (plan.after == null || projection != null) {
+            return null;
+        }
+
+        final Object[] key = new Object[plan.keys.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Reflection.get(plan.keys[i], row);
+
+            // nulls sort where the database likes and compare to nothing
+            if (key[i] == null) {
+                return null;
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * Read the page of rows that sort after the specified key
+     *
+     * @param em
+     * @param key of the last row read
+     * @param max
+     * @param deadline of the reader, or null
+     * @return
+     */
+    public List<Object> readAfter(final EntityManager em, final Object[] key, final int max, final Deadline deadline) {
+        final Query query = create(em, plan.after, deadline);
+        for (int i = 0; i < key.length; i++) {
+            query.setParameter(KEY + i, key[i]);
+        }
+        query.setMaxResults(max);
+
+        return map(query.getResultList());
+    }
+
+    /**
+     * Count all rows of the select
+     *
+     * @param em
+     * @param deadline of the reader, or null
+     * @return
+     */
+    public long count(final EntityManager em, final Deadline deadline) {
+        final Query query = em.createQuery(CountQuery.count(jpql));
+        binder.bind(query);
+        Timeouts.apply(query, deadline);
+
+        return ((Number) query.getSingleResult()).longValue();
+    }
+
+    private Query create(final EntityManager em, final String select, final Deadline deadline) {
+        final Query query = em.createQuery(select);
+        binder.bind(query);
+
+        if (graphs != null) {
+            graphs.apply(query);
+        }
+
+        Timeouts.apply(query, deadline);
+
+        return query;
+    }
+
+    /**
+     * Copy the rows, as lazily read result lists die with their
+     * EntityManager, and project them if the method asks for it
+     */
+    private List<Object> map(final List<?> rows) {
+        final List<Object> copy = new ArrayList<Object>(rows);
+
+        return (projection != null) ? new ArrayList<Object>((List<?>) projection.map(copy)) : copy;
+    }
+
+    private static Plan plan(final EntityManager em, final Method method, final String jpql) {
+        Plan plan = PLANS.get(jpql);
+
+        if (plan == null) {
+            plan = build(em, method, jpql);
+            PLANS.put(jpql, plan);
+        }
+
+        return plan;
+    }
+
+    private static Plan build(final EntityManager em, final Method method, final String jpql) {
+        final String variable = Jpql.fromVariable(jpql);
+        final EntityType<?> entity = (variable == null) ? null : Queries.entity(em, Jpql.fromEntity(jpql));
+        final SingularAttribute<?, ?> id = (entity == null) ? null : Queries.idAttribute(entity);
+        final List<String> items = Jpql.orderByItems(jpql);
+
+        if (id == null) {
+            if (items.isEmpty()) {
+                throw new ValidationException(method.getName() + " needs an order by to be read in pages");
+            }
+            return new Plan(jpql, null, null);
+        }
+
+        // only rows of the selected entity are told apart by its id
+        if (!variable.equals(Jpql.selectedVariable(jpql))) {
+            final String ordered = (items.isEmpty()) ? Jpql.replaceOrderBy(jpql, variable + "." + id.getName() + " asc") : jpql;
+            return new Plan(ordered, null, null);
+        }
+
+        final List<String> paths = new ArrayList<String>();
+        final List<Boolean> descending = new ArrayList<Boolean>();
+        final List<Member> keys = new ArrayList<Member>();
+        boolean keyed = true;
+
+        for (final String item : items) {
+            final Matcher matcher = ORDER_ITEM.matcher(item);
+            final SingularAttribute<?, ?> attribute = (matcher.matches() && matcher.group(1).equals(variable)) ? basic(entity, matcher.group(2)) : null;
+
+            if (attribute == null) {
+                keyed = false;
+                break;
+            }
+
+            paths.add(variable + "." + attribute.getName());
+            descending.add("desc".equalsIgnoreCase(matcher.group(3)));
+            keys.add(attribute.getJavaMember());
+        }
+
+        String ordered = jpql;
+        final String idPath = variable + "." + id.getName();
+
+        if (!paths.contains(idPath)) {
+            ordered = Jpql.replaceOrderBy(jpql, (items.isEmpty()) ? idPath + " asc" : join(items) + ", " + idPath + " asc");
+            paths.add(idPath);
+            descending.add(false);
+            keys.add(id.getJavaMember());
+        }
+
+        if (!keyed) {
+            return new Plan(ordered, null, null);
+        }
+
+        // (a > :k0) or (a = :k0 and b > :k1) or ...
+        final StringBuilder after = new StringBuilder();
+        for (int i = 0; i < paths.size(); i++) {
+            after.append((i == 0) ? "(" : " or (");
+            for (int j = 0; j < i; j++) {
+                after.append(paths.get(j)).append(" = :").append(KEY).append(j).append(" and ");
+            }
+            after.append(paths.get(i)).append(descending.get(i) ? " < :" : " > :").append(KEY).append(i).append(')');
+        }
+
+        return new Plan(ordered, Jpql.addConditions(ordered, Collections.singletonList(after.toString())), keys.toArray(new Member[0]));
+    }
+
+    private static SingularAttribute<?, ?> basic(final EntityType<?> entity, final String name) {
+        for (final SingularAttribute<?, ?> attribute : entity.getSingularAttributes()) {
+            if (attribute.getName().equals(name) && attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    private static String join(final List<String> items) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String item : items) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    private static class Plan {
+        private final String ordered;
+        private final String after;
+        private final Member[] keys;
+
+        private Plan(final String ordered, final String after, final Member[] keys) {
+            this.ordered = ordered;
+            this.after = after;
+            this.keys = keys;
+        }
+    }
+}
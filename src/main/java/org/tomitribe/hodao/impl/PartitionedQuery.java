@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.Partitioned;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a select as concurrent key range partitions.  The range of the
+ * partition attribute is read first with min and max over the same
+ * where clause, then divided into equal spans.  Aggregates and group
+ * by are refused, as each partition would compute them over its own
+ * rows only.
+ * <p/>
+ * The statements and the way to merge results are worked out once per
+ * base query.
+ *
+ * @version $Revision$ $Date$
+ */
+public class PartitionedQuery {
+
+    private static final Map<Method, PartitionedQuery> PARTITIONED = new ConcurrentHashMap<Method, PartitionedQuery>();
+
+    private static final Pattern AGGREGATE = Pattern.compile("(?i)(?<![\\w$.])(avg|count|max|min|sum)\\s*\\(");
+
+    private static final Pattern ORDER_ITEM = Pattern.compile("(?i)([A-Za-z_$][\\w$]*)\\.([A-Za-z_$][\\w$]*)(?:\\s+(asc|desc))?");
+
+    private static final String START = "partitionStart";
+    private static final String END = "partitionEnd";
+
+    private final String attribute;
+    private final int partitions;
+    private final Map<String, Plan> plans = new ConcurrentHashMap<String, Plan>();
+
+    private PartitionedQuery(final Partitioned partitioned) {
+        this.attribute = partitioned.by();
+        this.partitions = partitioned.partitions();
+    }
+
+    /**
+     * The partitioning of the method or null if it has no @Partitioned
+     *
+     * @param method
+     * @return
+     */
+    public static PartitionedQuery of(final Method method) {
+        final Partitioned partitioned = method.getAnnotation(Partitioned.class);
+
+        if (partitioned == null) {
+            return null;
+        }
+
+        PartitionedQuery query = PARTITIONED.get(method);
+
+        if (query == null) {
+            if (partitioned.partitions() < 1) {
+                throw new ValidationException(method.getName() + " has fewer than 1 partition");
+            }
+
+            query = new PartitionedQuery(partitioned);
+            PARTITIONED.put(method, query);
+        }
+
+        return query;
+    }
+
+    /**
+     * Run the partitions and merge their results
+     *
+     * @param em supplies the EntityManagerFactory, and reads the key range
+     * @param jpql the select
+     * @param binder binds the arguments to every partition
+     * @return
+     * @throws Exception what a partition threw
+     */
+    public List<Object> execute(final EntityManager em, final String jpql, final Binder binder) throws Exception {
+        final Plan plan = plan(em, jpql);
+
+        final Query bounds = em.createQuery(plan.bounds);
+        binder.bind(bounds);
+        Timeouts.apply(bounds);
+
+        final Object[] range = (Object[]) bounds.getSingleResult();
+        if (range[0] == null) {
+            return new ArrayList<Object>();
+        }
+
+        if (!isIntegral(range[0])) {
+            throw new ValidationException("Cannot partition by " + attribute + ", it is not an integral number");
+        }
+
+        final Class<?> type = range[0].getClass();
+        final long min = ((Number) range[0]).longValue();
+        final long max = ((Number) range[1]).longValue();
+        final long span = max - min + 1;
+        final int count = (int) Math.min(partitions, span);
+
+        final EntityManagerFactory emf = em.getEntityManagerFactory();
+        final ExecutorService executor = Concurrency.executor();
+        final List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>(count);
+        final Deadline deadline = Deadline.current();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                final boolean last = i == count - 1;
+                final Object start = Primitives.convert(min + (span / count) * i + Math.min(i, span % count), type);
+                final Object end = (last) ? range[1] : Primitives.convert(min + (span / count) * (i + 1) + Math.min(i + 1, span % count), type);
+
+                futures.add(executor.submit(new Callable<List<Object>>() {
+                    @Override
+                    public List<Object> call() {
+                        final EntityManager partition = emf.createEntityManager();
+                        try {
+                            final Query query = partition.createQuery((last) ? plan.last : plan.middle);
+                            binder.bind(query);
+                            query.setParameter(START, start);
+                            query.setParameter(END, end);
+                            Timeouts.apply(query, deadline);
+
+                            // copied, as lazily read result lists die with their EntityManager
+                            return new ArrayList<Object>((List<?>) query.getResultList());
+                        } finally {
+                            partition.close();
+                        }
+                    }
+                }));
+            }
+
+            final List<List<Object>> parts = new ArrayList<List<Object>>(count);
+            for (final Future<List<Object>> future : futures) {
+                try {
+                    parts.add(future.get());
+                } catch (final ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+
+            // descending keys come from the last partition first
+            if (plan.reversed) {
+                Collections.reverse(parts);
+            }
+
+            final List<Object> results = new ArrayList<Object>();
+            for (final List<Object> part : parts) {
+                results.addAll(part);
+            }
+
+            if (plan.comparator != null) {
+                // each partition is already sorted, which the merge sort makes use of
+                Collections.sort(results, plan.comparator);
+            }
+
+            return results;
+
+        } finally {
+            for (final Future<List<Object>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Check the results of the partitions of the select can simply be
+     * joined, which is not so for aggregates or groups
+     *
+     * @param jpql
+     * @throws ValidationException if the select aggregates or groups
+     */
+    public static void validate(final String jpql) {
+        if (Jpql.indexOf(jpql, "group", 0) >= 0 || Jpql.indexOf(jpql, "having", 0) >= 0) {
+            throw new ValidationException("Cannot partition " + jpql + ", each partition would group only its own rows");
+        }
+
+        for (final String item : Jpql.selectItems(jpql)) {
+            if (AGGREGATE.matcher(item).find()) {
+                throw new ValidationException("Cannot partition " + jpql + ", each partition would aggregate only its own rows");
+            }
+        }
+    }
+
+    private Plan plan(final EntityManager em, final String jpql) {
+        Plan plan = plans.get(jpql);
+
+        if (plan == null) {
+            plan = build(em, jpql);
+            plans.put(jpql, plan);
+        }
+
+        return plan;
+    }
+
+    private Plan build(final EntityManager em, final String jpql) {
+        final String variable = Jpql.fromVariable(jpql);
+        if (variable == null || Jpql.selectClause(jpql) == null) {
+            throw new ValidationException("@Partitioned needs a select with an identification variable, not " + jpql);
+        }
+
+        validate(jpql);
+
+        final String path = variable + "." + attribute;
+        final String after = path + " >= :" + START;
+
+        final Plan plan = new Plan();
+        plan.bounds = Jpql.removeOrderBy(Jpql.replaceSelectClause(jpql, "min(" + path + "), max(" + path + ")"));
+        plan.middle = Jpql.addConditions(jpql, Arrays.asList(after, path + " < :" + END));
+        plan.last = Jpql.addConditions(jpql, Arrays.asList(after, path + " <= :" + END));
+
+        final List<String> order = Jpql.orderByItems(jpql);
+        if (order.isEmpty()) {
+            return plan;
+        }
+
+        final Matcher first = ORDER_ITEM.matcher(order.get(0));
+        if (first.matches() && first.group(1).equals(variable) && first.group(2).equals(attribute)) {
+            plan.reversed = "desc".equalsIgnoreCase(first.group(3));
+            return plan;
+        }
+
+        if (!variable.equals(Jpql.selectedVariable(jpql))) {
+            throw new ValidationException("Cannot merge partitions of " + jpql + ", order by " + attribute + " or select the entity");
+        }
+
+        plan.comparator = comparator(Queries.entity(em, Jpql.fromEntity(jpql)), variable, order, jpql);
+
+        return plan;
+    }
+
+    /**
+     * Orders selected entities the way the order by items do, for
+     * merging results read separately
+     *
+     * @param entity
+     * @param variable
+     * @param order
+     * @param jpql
+     * @return
+     * @throws ValidationException if an item is not an attribute of the entity
+     */
+    static Comparator<Object> comparator(final EntityType<?> entity, final String variable, final List<String> order, final String jpql) {
+        final List<Member> members = new ArrayList<Member>();
+        final List<Boolean> descending = new ArrayList<Boolean>();
+
+        for (final String item : order) {
+            final Matcher matcher = ORDER_ITEM.matcher(item);
+            if (entity == null || !matcher.matches() || !matcher.group(1).equals(variable)) {
+                throw new ValidationException("Cannot merge the results of " + jpql + " ordered by " + item);
+            }
+
+            final Attribute<?, ?> attribute;
+            try {
+                attribute = entity.getAttribute(matcher.group(2));
+            } catch (final IllegalArgumentException e) {
+                throw new ValidationException(entity.getName() + " has no property " + matcher.group(2));
+            }
+
+            if (!(attribute instanceof SingularAttribute) || !isComparable(attribute.getJavaType())) {
+                throw new ValidationException("Cannot merge the results of " + jpql + " ordered by " + item);
+            }
+
+            members.add(attribute.getJavaMember());
+            descending.add("desc".equalsIgnoreCase(matcher.group(3)));
+        }
+
+        return new Comparator<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public int compare(final Object a, final Object b) {
+                for (int i = 0; i < members.size(); i++) {
+                    final Comparable<Object> x = (Comparable<Object>) Reflection.get(members.get(i), a);
+                    final Comparable<Object> y = (Comparable<Object>) Reflection.get(members.get(i), b);
+
+                    final int result;
+                    if (x == null || y == null) {
+                        result = (x == null) ? ((y == null) ? 0 : -1) : 1;
+                    } else {
+                        result = x.compareTo(y);
+                    }
+
+                    if (result != 0) {
+                        return (descending.get(i)) ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    private static boolean isComparable(final Class<?> type) {
+        return type.isPrimitive() || Comparable.class.isAssignableFrom(type);
+    }
+
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Number && !(value instanceof Double || value instanceof Float || value instanceof BigDecimal);
+    }
+
+    private static class Plan {
+        private String bounds;
+        private String middle;
+        private String last;
+        private boolean reversed;
+        private Comparator<Object> comparator;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Patch;
+import org.tomitribe.hodao.Set;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.Version;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bulk UPDATE statements of a @Patch method.  Which attributes a
+ * call writes is a bit set, and the statement for each bit set is
+ * built once and reused.
+ *
+ * @version $Revision$ $Date$
+ */
+public class PatchQuery {
+
+    private static final Map<Method, PatchQuery> PATCHES = new ConcurrentHashMap<Method, PatchQuery>();
+
+    private final String entityName;
+    private final String id;
+    private final String version;
+    private final boolean timestamp;
+    private final String[] attributes;
+
+    /**
+     * When patching from an entity, how to read the attributes, the id
+     * and the version.  Null when patching from parameters.
+     */
+    private final Member[] members;
+    private final Member idMember;
+    private final Member versionMember;
+
+    /**
+     * When patching from parameters, where to find the attributes,
+     * the id and the version.
+     */
+    private final int[] indexes;
+    private final int idIndex;
+    private final int versionIndex;
+
+    private final Map<BitSet, String> statements = new ConcurrentHashMap<BitSet, String>();
+
+    private PatchQuery(final EntityType<?> entity, final String[] attributes, final Member[] members, final int[] indexes,
+                       final int idIndex, final int versionIndex) {
+        this.entityName = entity.getName();
+        this.attributes = attributes;
+        this.members = members;
+        this.indexes = indexes;
+        this.idIndex = idIndex;
+        this.versionIndex = versionIndex;
+
+        final SingularAttribute<?, ?> idAttribute = Queries.idAttribute(entity);
+        if (idAttribute == null) {
+            throw new ValidationException(entity.getName() + " has a composite id which @Patch does not support");
+        }
+
+        final SingularAttribute<?, ?> versionAttribute = Queries.versionAttribute(entity);
+
+        this.id = idAttribute.getName();
+        this.idMember = idAttribute.getJavaMember();
+        this.version = (versionAttribute == null) ? null : versionAttribute.getName();
+        this.versionMember = (versionAttribute == null) ? null : versionAttribute.getJavaMember();
+        this.timestamp = versionAttribute != null && Date.class.isAssignableFrom(versionAttribute.getJavaType());
+    }
+
+    /**
+     * The patch for the method, built on first use
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static PatchQuery of(final EntityManager em, final Method method) {
+        PatchQuery patch = PATCHES.get(method);
+
+        if (patch == null) {
+            patch = build(em, method);
+            PATCHES.put(method, patch);
+        }
+
+        return patch;
+    }
+
+    /**
+     * Run the statement for the attributes the arguments touch
+     *
+     * @param em
+     * @param args
+     * @return the number of rows updated
+     * @throws OptimisticLockException if an expected version was given and did not match
+     */
+    public int execute(final EntityManager em, final Object[] args) {
+        final Object[] values = new Object[attributes.length];
+        final BitSet touched = new BitSet(attributes.length);
+        final Object key;
+        final Object expected;
+
+        if (members != null) {
+            final Object entity = args[0];
+            if (entity == null) {
+                throw new ValidationException(entityName + " object is null");
+            }
+
+            for (int i = 0; i < members.length; i++) {
+                values[i] = Reflection.get(members[i], entity);
+            }
+
+            key = Reflection.get(idMember, entity);
+            expected = (versionMember == null) ? null : Reflection.get(versionMember, entity);
+
+        } else {
+
+            for (int i = 0; i < indexes.length; i++) {
+                values[i] = args[indexes[i]];
+            }
+
+            key = args[idIndex];
+            expected = (versionIndex < 0) ? null : args[versionIndex];
+        }
+
+        if (key == null) {
+            throw new ValidationException("Invalid id");
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                touched.set(i);
+            }
+        }
+
+        if (touched.isEmpty()) {
+            return 0;
+        }
+
+        final boolean check = version != null && expected != null;
+        final BitSet statementKey = (BitSet) touched.clone();
+        if (check) {
+            statementKey.set(attributes.length);
+        }
+
+        String jpql = statements.get(statementKey);
+        if (jpql == null) {
+            jpql = statement(touched, check);
+            statements.put(statementKey, jpql);
+        }
+
+        final Query query = em.createQuery(jpql);
+        for (int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1)) {
+            query.setParameter("set" + i, values[i]);
+        }
+        query.setParameter("id", key);
+        if (check) {
+            query.setParameter("version", expected);
+        }
+
+        Timeouts.apply(query);
+
+        final int rows = query.executeUpdate();
+
+        if (rows == 0 && check) {
+            throw new OptimisticLockException(entityName + " " + key + " is not at version " + expected);
+        }
+
+        return rows;
+    }
+
+    private String statement(final BitSet touched, final boolean check) {
+        final StringBuilder jpql = new StringBuilder("update ").append(entityName).append(" x set ");
+
+        String separator = "";
+        for (int i = touched.nextSetBit(0); i >= 0; i = touched.nextSetBit(i + 1)) {
+            jpql.append(separator).append("x.").append(attributes[i]).append(" = :set").append(i);
+            separator = ", ";
+        }
+
+        if (version != null) {
+            jpql.append(", x.").append(version).append(" = ");
+            if (timestamp) {
+                jpql.append("CURRENT_TIMESTAMP");
+            } else {
+                jpql.append("x.").append(version).append(" + 1");
+            }
+        }
+
+        jpql.append(" where x.").append(id).append(" = :id");
+
+        if (check) {
+            jpql.append(" and x.").append(version).append(" = :version");
+        }
+
+        return jpql.toString();
+    }
+
+    private static PatchQuery build(final EntityManager em, final Method method) {
+        final Class<?>[] types = method.getParameterTypes();
+
+        if (types.length == 1 && Queries.isManaged(em, types[0])) {
+            return fromEntity(em.getMetamodel().entity(types[0]));
+        }
+
+        final Patch patch = method.getAnnotation(Patch.class);
+        final Class<?> type = (Void.TYPE.equals(patch.value())) ? Queries.entityType(method) : patch.value();
+        final EntityType<?> entity = em.getMetamodel().entity(type);
+
+        final List<String> attributes = new ArrayList<String>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        int idIndex = -1;
+        int versionIndex = -1;
+
+        final Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            final Set set = find(annotations[i], Set.class);
+
+            if (set != null) {
+                try {
+                    entity.getAttribute(set.value());
+                } catch (final IllegalArgumentException e) {
+                    throw new ValidationException(type.getSimpleName() + " has no property " + set.value() + " used by " + method.getName());
+                }
+                attributes.add(set.value());
+                indexes.add(i);
+            } else if (find(annotations[i], Version.class) != null) {
+                versionIndex = i;
+            } else if (idIndex < 0) {
+                idIndex = i;
+            } else {
+                throw new ValidationException(method.getName() + " has more than one parameter that is neither @Set nor @Version");
+            }
+        }
+
+        if (idIndex < 0) {
+            throw new ValidationException(method.getName() + " has no id parameter");
+        }
+
+        if (versionIndex >= 0 && Queries.versionAttribute(entity) == null) {
+            throw new ValidationException(type.getSimpleName() + " has no version attribute to check");
+        }
+
+        final int[] positions = new int[indexes.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = indexes.get(i);
+        }
+
+        return new PatchQuery(entity, attributes.toArray(new String[0]), null, positions, idIndex, versionIndex);
+    }
+
+    private static PatchQuery fromEntity(final EntityType<?> entity) {
+        final Map<String, Member> members = new TreeMap<String, Member>();
+
+        for (final SingularAttribute<?, ?> attribute : entity.getSingularAttributes()) {
+            if (attribute.isId() || attribute.isVersion()) {
+                continue;
+            }
+
+            // associations and primitives cannot say they were left alone, patch those with @Set
+            if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.BASIC || attribute.getJavaType().isPrimitive()) {
+                continue;
+            }
+            members.put(attribute.getName(), attribute.getJavaMember());
+        }
+
+        return new PatchQuery(entity, members.keySet().toArray(new String[0]), members.values().toArray(new Member[0]), null, -1, -1);
+    }
+
+    private static <T extends Annotation> T find(final Annotation[] annotations, final Class<T> type) {
+        for (final Annotation annotation : annotations) {
+            if (type.isInstance(annotation)) {
+                return type.cast(annotation);
+            }
+        }
+        return null;
+    }
+}
@@ -16,25 +16,57 @@
  */
 package org.tomitribe.hodao.impl;
 
+import org.tomitribe.hodao.ChunkBy;
+import org.tomitribe.hodao.Coalesce;
+import org.tomitribe.hodao.Count;
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.EntityManagerResolver;
+import org.tomitribe.hodao.Exists;
+import org.tomitribe.hodao.Export;
 import org.tomitribe.hodao.Find;
+import org.tomitribe.hodao.FindBatch;
+import org.tomitribe.hodao.Lazy;
 import org.tomitribe.hodao.MaxResults;
+import org.tomitribe.hodao.Memoize;
 import org.tomitribe.hodao.Merge;
 import org.tomitribe.hodao.NamedQuery;
+import org.tomitribe.hodao.NativeQuery;
 import org.tomitribe.hodao.Offset;
 import org.tomitribe.hodao.Optional;
+import org.tomitribe.hodao.Partitioned;
+import org.tomitribe.hodao.Patch;
 import org.tomitribe.hodao.Persist;
 import org.tomitribe.hodao.QueryParam;
 import org.tomitribe.hodao.QueryString;
 import org.tomitribe.hodao.Remove;
+import org.tomitribe.hodao.Retry;
+import org.tomitribe.hodao.ShardResolver;
+import org.tomitribe.hodao.Upsert;
 import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
 import org.tomitribe.hodao.util.Parameter;
 import org.tomitribe.hodao.util.Reflection;
 
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.Query;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 /**
  * Beautiful Source of DRY CRUD
@@ -45,10 +77,173 @@ import java.util.Collection;
  */
 public class PersistenceHandler {
 
+    /**
+     * Pads nothing, as chunks of IN lists come padded already
+     */
+    private static final Set<String> PADDED = Collections.emptySet();
+
+    private static final List<Class<? extends Annotation>> OPERATIONS = Arrays.<Class<? extends Annotation>>asList(
+            NamedQuery.class, QueryString.class, NativeQuery.class, Count.class, Exists.class,
+            Find.class, Merge.class, Patch.class, Upsert.class, Remove.class,
+            Persist.class);
+
     private PersistenceHandler() {
     }
 
     public static Object invoke(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        return guard(method, new Call() {
+            @Override
+            public Object call() throws Throwable {
+                return execute(em, method, args);
+            }
+        });
+    }
+
+    /**
+     * Invoke the method on this EntityManager, once any @MaxConcurrent
+     * permit is held
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    static Object execute(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+
+        if (method.isAnnotationPresent(Coalesce.class)) {
+
+            return Coalescing.invoke(em, method, args);
+
+        }
+
+        if (method.isAnnotationPresent(Memoize.class)) {
+
+            return Memoization.invoke(em, method, args);
+
+        }
+
+        if (Operations.isWrite(em, method)) {
+
+            Memoization.invalidate();
+
+        }
+
+        if (method.isAnnotationPresent(Retry.class)) {
+
+            return Retrying.invoke(em, method, args);
+
+        }
+
+        return dispatch(em, method, args);
+    }
+
+    /**
+     * Invoke the method on the primary, or on a replica if it is a
+     * @ReadReplica read
+     *
+     * @param resolver
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object invoke(final EntityManagerResolver resolver, final Method method, final Object[] args) throws Throwable {
+        return guard(method, new Call() {
+            @Override
+            public Object call() throws Throwable {
+                return route(resolver, method, args);
+            }
+        });
+    }
+
+    private static Object route(final EntityManagerResolver resolver, final Method method, final Object[] args) throws Throwable {
+        final EntityManager primary = resolver.primary();
+
+        if (!Replicas.isReplicaRead(primary, method)) {
+
+            if (Operations.isWrite(primary, method)) {
+                Replicas.wrote();
+            }
+
+            return execute(primary, method, args);
+        }
+
+        final EntityManager replica = resolver.replica();
+        try {
+            return execute(replica, method, args);
+        } finally {
+            resolver.release(replica);
+        }
+    }
+
+    /**
+     * Shard the call by its @ShardKey, or run it on every shard
+     *
+     * @param resolver
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object invoke(final ShardResolver resolver, final Method method, final Object[] args) throws Throwable {
+        return guard(method, new Call() {
+            @Override
+            public Object call() throws Throwable {
+                return Sharding.invoke(resolver, method, args);
+            }
+        });
+    }
+
+    /**
+     * Run the call within the method's @Timeout, if any, and holding a
+     * permit of its @MaxConcurrent, if any.  A call whose deadline has
+     * already passed fails before waiting for a permit.
+     *
+     * @param method
+     * @param call
+     * @return
+     * @throws Throwable
+     */
+    private static Object guard(final Method method, final Call call) throws Throwable {
+        final Deadline deadline = Timeouts.open(method);
+
+        try {
+            Timeouts.check(method);
+
+            final Bulkhead bulkhead = Bulkhead.of(method);
+
+            if (bulkhead == null) {
+                return call.call();
+            }
+
+            bulkhead.acquire(method);
+            try {
+                return call.call();
+            } finally {
+                bulkhead.release();
+            }
+        } finally {
+            if (deadline != null) {
+                deadline.close();
+            }
+        }
+    }
+
+    private interface Call {
+        Object call() throws Throwable;
+    }
+
+    /**
+     * Run the operation the method is annotated with
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    static Object dispatch(final EntityManager em, final Method method, final Object[] args) throws Throwable {
 
         if (method.isAnnotationPresent(NamedQuery.class)) {
 
@@ -62,6 +257,24 @@ public class PersistenceHandler {
 
         }
 
+        if (method.isAnnotationPresent(NativeQuery.class)) {
+
+            return invokeNativeQuery(em, method, args);
+
+        }
+
+        if (method.isAnnotationPresent(Count.class)) {
+
+            return count(em, method, args);
+
+        }
+
+        if (method.isAnnotationPresent(Exists.class)) {
+
+            return exists(em, method, args);
+
+        }
+
         if (method.isAnnotationPresent(Find.class)) {
 
             return findByPrimaryKey(em, method, args);
@@ -74,6 +287,18 @@ public class PersistenceHandler {
 
         }
 
+        if (method.isAnnotationPresent(Patch.class)) {
+
+            return patch(em, method, args);
+
+        }
+
+        if (method.isAnnotationPresent(Upsert.class)) {
+
+            return upsert(em, method, args);
+
+        }
+
         if (method.isAnnotationPresent(Remove.class)) {
 
             return remove(em, method, args);
@@ -86,9 +311,78 @@ public class PersistenceHandler {
 
         }
 
+        if (DerivedQuery.of(em, method) != null) {
+
+            return invokeDerivedQuery(em, method, args);
+
+        }
+
         throw new AbstractMethodError("No handler logic for method: " + method.toString());
     }
 
+    /**
+     * Parse the names of all unannotated abstract methods of the DAO into
+     * queries up front, rather than on first call, and check what the
+     * @NativeQuery methods return and that @Partitioned selects neither
+     * aggregate nor group.  Intended for use in a @PostConstruct
+     * method so that bad method names fail at startup.
+     *
+     * @param em
+     * @param dao
+     */
+    public static void compile(final EntityManager em, final Class<?> dao) {
+        for (final Method method : dao.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers())) {
+                continue;
+            }
+
+            if (method.isAnnotationPresent(NativeQuery.class)) {
+                NativeStatement.of(em, method);
+            } else if (!isOperation(method)) {
+                DerivedQuery.of(em, method);
+            }
+
+            if (method.isAnnotationPresent(Partitioned.class) && !method.isAnnotationPresent(NativeQuery.class)) {
+                PartitionedQuery.validate(Queries.jpql(em, method));
+            }
+        }
+    }
+
+    /**
+     * As compile(EntityManager, Class), and also check every method can
+     * be called through the ShardResolver, so selects whose results
+     * cannot be merged across shards fail at startup.
+     *
+     * @param resolver
+     * @param dao
+     */
+    public static void compile(final ShardResolver resolver, final Class<?> dao) {
+        final EntityManager em = resolver.shards().get(0);
+
+        compile(em, dao);
+
+        for (final Method method : dao.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers())) {
+                Sharding.validate(em, method);
+            }
+        }
+    }
+
+    /**
+     * Does the method carry one of the operation annotations?
+     *
+     * @param method
+     * @return
+     */
+    static boolean isOperation(final Method method) {
+        for (final Class<? extends Annotation> operation : OPERATIONS) {
+            if (method.isAnnotationPresent(operation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * CREATE
      * <p/>
@@ -138,7 +432,72 @@ public class PersistenceHandler {
         if (primaryKey == null) {
             throw new ValidationException("Invalid id");
         }
-        return em.find(entityClass, primaryKey);
+
+        if (CompletableFuture.class.equals(entityClass)) {
+            return findLater(em, method, primaryKey);
+        }
+
+        return find(em, method, entityClass, primaryKey);
+    }
+
+    private static Object find(final EntityManager em, final Method method, final Class<?> entityClass, final Object primaryKey) {
+        final EntityGraphs graphs = EntityGraphs.of(em, method);
+        final Locking locking = Locking.of(em, method);
+
+        if (graphs == null && locking == null && Deadline.current() == null) {
+            return em.find(entityClass, primaryKey);
+        }
+
+        final Map<String, Object> properties = Timeouts.properties();
+        if (graphs != null) {
+            properties.putAll(graphs.properties());
+        }
+
+        if (locking != null) {
+            properties.putAll(locking.properties());
+            return em.find(entityClass, primaryKey, locking.getMode(), properties);
+        }
+
+        return em.find(entityClass, primaryKey, properties);
+    }
+
+    /**
+     * Run the operation from a Callable, which can only throw Exceptions
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    static Object call(final EntityManager em, final Method method, final Object[] args) throws Exception {
+        try {
+            return dispatch(em, method, args);
+        } catch (final Exception | Error e) {
+            throw e;
+        } catch (final Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Queue the find in the current FindBatch, or find it now if there is none
+     *
+     * @param em
+     * @param method
+     * @param primaryKey
+     * @return
+     */
+    private static Object findLater(final EntityManager em, final Method method, final Object primaryKey) {
+        final Class<?> entityClass = Reflection.typeArgument(method.getGenericReturnType());
+        final FindBatch batch = FindBatch.current();
+
+        // a batch reads with a query of its own, which would not take the locks
+        if (batch == null || Locking.of(em, method) != null) {
+            return CompletableFuture.completedFuture(find(em, method, entityClass, primaryKey));
+        }
+
+        return batch.enqueue(em, entityClass, primaryKey);
     }
 
     /**
@@ -154,127 +513,904 @@ public class PersistenceHandler {
      */
     public static Object invokeNamedQuery(final EntityManager em, final Method method, final Object[] args) throws Throwable {
         final NamedQuery namedQuery = method.getAnnotation(NamedQuery.class);
-        final Query query = em.createNamedQuery(namedQuery.value());
+        final Projection projection = (namedQuery.update()) ? null : Projection.of(em, method);
+        final String jpql = variant(em, method, args, projection);
 
-        if (namedQuery.update()) {
-
-            return update(method, args, query);
+        if (namedQuery.update() && method.isAnnotationPresent(ChunkBy.class)) {
+            return chunkedUpdate(em, method, args, (jpql != null) ? jpql : Queries.jpql(em, method));
+        }
 
-        } else {
+        if (!namedQuery.update() && method.isAnnotationPresent(Partitioned.class)) {
+            return partitioned(em, method, args, projection, (jpql != null) ? jpql : Queries.jpql(em, method));
+        }
 
-            return select(method, args, query);
+        if (!namedQuery.update() && method.isAnnotationPresent(Lazy.class)) {
+            return lazy(em, method, args, projection, (jpql != null) ? jpql : Queries.jpql(em, method));
         }
-    }
 
-    public static Object invokeQueryString(final EntityManager em, final Method method, final Object[] args) throws Throwable {
-        final QueryString queryString = method.getAnnotation(QueryString.class);
-        final Query query = em.createQuery(queryString.value());
+        if (!namedQuery.update() && Flow.Publisher.class.equals(method.getReturnType())) {
+            return publisher(em, method, args, projection, (jpql != null) ? jpql : Queries.jpql(em, method));
+        }
 
-        if (queryString.update()) {
+        if (!namedQuery.update() && method.isAnnotationPresent(Export.class)) {
+            return export(em, method, args, (jpql != null) ? jpql : Queries.jpql(em, method));
+        }
 
-            return update(method, args, query);
+        final Query query = (jpql != null) ? em.createQuery(jpql) : em.createNamedQuery(namedQuery.value());
 
-        } else {
+        bindFilters(method, args, query);
 
-            return select(method, args, query);
+        if (!namedQuery.update()) {
+            applyHints(em, method, query, projection);
         }
-    }
 
-    private static Object select(Method method, Object[] args, Query query) {
-        final boolean optional = method.getAnnotation(Optional.class) != null;
+        if (namedQuery.update()) {
 
-        Integer offset = null;
-        Integer maxResults = null;
+            return update(em, method, args, query);
 
-        for (final Parameter parameter : Reflection.params(method, args)) {
-            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
-            if (queryParam != null) {
-                if (parameter.getValue() == null) {
-                    throw new ValidationException(queryParam.value() + " is null");
-                }
+        } else if (projection != null) {
 
-                query.setParameter(queryParam.value(), parameter.getValue());
-            }
+            return projection.map(select(em, method, args, query, jpql));
 
-            final Offset o = parameter.getAnnotation(Offset.class);
-            if (o != null && (isInt(parameter.getType()))) {
-                offset = (Integer) parameter.getValue();
-            }
+        } else {
 
-            final MaxResults m = parameter.getAnnotation(MaxResults.class);
-            if (m != null && (isInt(parameter.getType()))) {
-                maxResults = (Integer) parameter.getValue();
-            }
+            return select(em, method, args, query, jpql);
         }
+    }
 
-        if (offset != null && maxResults != null) {
-            query.setFirstResult(offset);
-            query.setMaxResults(maxResults);
-        }
+    public static Object invokeQueryString(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final QueryString queryString = method.getAnnotation(QueryString.class);
+        final Projection projection = (queryString.update()) ? null : Projection.of(em, method);
+        final String jpql = variant(em, method, args, projection);
 
-        try {
+        if (queryString.update() && method.isAnnotationPresent(ChunkBy.class)) {
+            return chunkedUpdate(em, method, args, (jpql != null) ? jpql : queryString.value());
+        }
 
-            return (isList(method)) ? query.getResultList() : query.getSingleResult();
+        if (!queryString.update() && method.isAnnotationPresent(Partitioned.class)) {
+            return partitioned(em, method, args, projection, (jpql != null) ? jpql : queryString.value());
+        }
 
-        } catch (final NoResultException e) {
+        if (!queryString.update() && method.isAnnotationPresent(Lazy.class)) {
+            return lazy(em, method, args, projection, (jpql != null) ? jpql : queryString.value());
+        }
 
-            // if we don't require that this actually returns a value, we can return null
-            if (optional) {
-                return null;
-            }
+        if (!queryString.update() && Flow.Publisher.class.equals(method.getReturnType())) {
+            return publisher(em, method, args, projection, (jpql != null) ? jpql : queryString.value());
+        }
 
-            throw e;
+        if (!queryString.update() && method.isAnnotationPresent(Export.class)) {
+            return export(em, method, args, (jpql != null) ? jpql : queryString.value());
         }
-    }
 
-    private static Object update(Method method, Object[] args, Query query) {
-        for (final Parameter parameter : Reflection.params(method, args)) {
-            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
-            if (queryParam != null) {
-                if (parameter.getValue() == null) {
-                    throw new ValidationException(queryParam.value() + " is null");
-                }
+        final Query query = em.createQuery((jpql != null) ? jpql : queryString.value());
 
-                query.setParameter(queryParam.value(), parameter.getValue());
-            }
-        }
+        bindFilters(method, args, query);
 
-        if (isInt(method.getReturnType())) {
+        if (!queryString.update()) {
+            applyHints(em, method, query, projection);
+        }
 
-            return query.executeUpdate();
+        if (queryString.update()) {
 
-        } else if (isVoid(method.getReturnType())) {
+            return update(em, method, args, query);
 
-            query.executeUpdate();
+        } else if (projection != null) {
 
-            return null;
+            return projection.map(select(em, method, args, query, (jpql != null) ? jpql : queryString.value()));
 
         } else {
 
-            throw new IllegalArgumentException("Update methods must have a void or int return type");
+            return select(em, method, args, query, (jpql != null) ? jpql : queryString.value());
         }
     }
 
     /**
-     * UPDATE
-     * <p/>
-     * Perform a merge on the passed in entity
+     * The JPQL to run in place of the declared query when a projection,
+     * @Filter or @OrderBy parameters call for it, otherwise null
      *
      * @param em
      * @param method
      * @param args
+     * @param projection
      * @return
-     * @throws Throwable
      */
-    public static Object merge(final EntityManager em, final Method method, final Object[] args) throws Throwable {
-        final Class<?> entityClass = method.getParameterTypes()[0];
-        final Object entity = args[0];
+    private static String variant(final EntityManager em, final Method method, final Object[] args, final Projection projection) {
+        String jpql = (projection != null) ? projection.getJpql() : null;
 
-        if (entity == null) {
-            throw new ValidationException(entityClass.getSimpleName() + " object is null");
+        final Filters filters = Filters.of(method);
+        if (filters != null) {
+            jpql = filters.jpql((jpql != null) ? jpql : Queries.jpql(em, method), args);
         }
 
-        return em.merge(entity);
+        final Ordering ordering = Ordering.of(method);
+        if (ordering != null) {
+            jpql = ordering.jpql((jpql != null) ? jpql : Queries.jpql(em, method), args);
+        }
+
+        return jpql;
+    }
+
+    /**
+     * Set the lock mode and hints of @Lock, and the entity graph of
+     * @FetchGraph or @LoadGraph unless the results are projected
+     *
+     * @param em
+     * @param method
+     * @param query
+     * @param projection
+     */
+    private static void applyHints(final EntityManager em, final Method method, final Query query, final Projection projection) {
+        final Locking locking = Locking.of(em, method);
+        if (locking != null) {
+            locking.apply(query);
+        }
+
+        final EntityGraphs graphs = (projection == null) ? EntityGraphs.of(em, method) : null;
+        if (graphs != null) {
+            graphs.apply(query);
+        }
+    }
+
+    private static void bindFilters(final Method method, final Object[] args, final Query query) {
+        final Filters filters = Filters.of(method);
+
+        if (filters != null) {
+            filters.bind(query, args);
+        }
+    }
+
+    /**
+     * READ:
+     * <p/>
+     * Execute a native SQL query
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object invokeNativeQuery(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final NativeQuery nativeQuery = method.getAnnotation(NativeQuery.class);
+        final NativeStatement statement = NativeStatement.of(em, method);
+        final Query query;
+
+        if (nativeQuery.resultSetMapping().length() > 0) {
+
+            query = em.createNativeQuery(nativeQuery.value(), nativeQuery.resultSetMapping());
+
+        } else if (!isVoid(nativeQuery.resultClass())) {
+
+            query = em.createNativeQuery(nativeQuery.value(), nativeQuery.resultClass());
+
+        } else if (statement.isManaged()) {
+
+            query = em.createNativeQuery(nativeQuery.value(), Reflection.elementType(method));
+
+        } else {
+
+            query = em.createNativeQuery(nativeQuery.value());
+        }
+
+        if (nativeQuery.update()) {
+
+            return update(em, method, args, query);
+
+        } else {
+
+            return select(em, method, args, query, null);
+        }
+    }
+
+    /**
+     * READ:
+     * <p/>
+     * Count the results of a query without reading them
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object count(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final Query query = createCountQuery(em, method, args);
+
+        return Primitives.convert(query.getSingleResult(), method.getReturnType());
+    }
+
+    /**
+     * READ:
+     * <p/>
+     * Check whether a query has any result, reading at most one row
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object exists(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        return exists(createCountQuery(em, method, args), CountQuery.of(em, method).isCount());
+    }
+
+    /**
+     * Whether the count is positive, or the select of ids has a row
+     *
+     * @param query
+     * @param count does the query select a count?
+     * @return
+     */
+    private static boolean exists(final Query query, final boolean count) {
+        if (count) {
+            return ((Number) query.getSingleResult()).longValue() > 0;
+        }
+
+        query.setMaxResults(1);
+
+        return !query.getResultList().isEmpty();
+    }
+
+    private static Query createCountQuery(final EntityManager em, final Method method, final Object[] args) {
+        final Filters filters = Filters.of(method);
+        final String jpql = CountQuery.of(em, method).getJpql();
+        final Query query = em.createQuery((filters != null) ? filters.jpql(jpql, args) : jpql);
+
+        bindFilters(method, args, query);
+        bindQueryParams(em, method, args, query);
+        Timeouts.apply(query);
+
+        return query;
+    }
+
+    /**
+     * READ:
+     * <p/>
+     * Execute the query derived from the method name
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object invokeDerivedQuery(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final DerivedQuery derivedQuery = DerivedQuery.of(em, method);
+        final Projection projection = (derivedQuery.getKind() == DerivedQuery.Kind.FIND) ? Projection.of(em, method) : null;
+        final Query query = (projection != null) ? em.createQuery(projection.getJpql()) : em.createQuery(derivedQuery.getJpql());
+
+        derivedQuery.bind(query, method, args);
+
+        if (derivedQuery.getKind() == DerivedQuery.Kind.FIND) {
+            applyHints(em, method, query, projection);
+        }
+
+        switch (derivedQuery.getKind()) {
+            case DELETE:
+                return update(em, method, args, query);
+            case EXISTS:
+                Timeouts.apply(query);
+                return exists(query, derivedQuery.isCount());
+            default:
+                return (projection != null) ? projection.map(select(em, method, args, query, projection.getJpql()))
+                        : select(em, method, args, query, derivedQuery.getJpql());
+        }
+    }
+
+    private static Object select(final EntityManager em, final Method method, final Object[] args, final Query query, final String jpql) {
+        final boolean optional = method.getAnnotation(Optional.class) != null;
+        final Set<String> inLists = InLists.parameters(em, method);
+
+        Integer offset = null;
+        Integer maxResults = null;
+
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+            if (queryParam != null) {
+                if (parameter.getValue() == null) {
+                    throw new ValidationException(queryParam.value() + " is null");
+                }
+
+                setParameter(query, inLists, queryParam.value(), parameter.getValue());
+            }
+
+            final Offset o = parameter.getAnnotation(Offset.class);
+            if (o != null && (isInt(parameter.getType()))) {
+                offset = (Integer) parameter.getValue();
+            }
+
+            final MaxResults m = parameter.getAnnotation(MaxResults.class);
+            if (m != null && (isInt(parameter.getType()))) {
+                maxResults = (Integer) parameter.getValue();
+            }
+        }
+
+        final Parameter oversized = oversized(em, method, args);
+
+        if (oversized != null && isList(method)) {
+            if (offset != null && maxResults != null) {
+                throw new ValidationException(method.getName() + " cannot page through more than " + InLists.MAX + " " + oversized.getAnnotation(QueryParam.class).value());
+            }
+
+            return selectInChunks(em, method, query, oversized, (jpql != null) ? jpql : Queries.jpql(em, method));
+        }
+
+        if (offset != null && maxResults != null) {
+            query.setFirstResult(offset);
+            query.setMaxResults(maxResults);
+        }
+
+        Timeouts.apply(query);
+
+        final Class<?> returnType = method.getReturnType();
+
+        if (Primitives.isBuffered(returnType)) {
+            return Primitives.collect(query.getResultStream(), returnType);
+        }
+
+        try {
+
+            if (isList(method)) {
+                return query.getResultList();
+            }
+
+            return Primitives.convert(query.getSingleResult(), returnType);
+
+        } catch (final NoResultException e) {
+
+            // if we don't require that this actually returns a value, we can return null (or zero for primitives)
+            if (optional) {
+                return Primitives.convert(null, returnType);
+            }
+
+            throw e;
+        }
+    }
+
+    private static Object update(final EntityManager em, final Method method, final Object[] args, final Query query) {
+        bindQueryParams(em, method, args, query);
+
+        final Parameter oversized = oversized(em, method, args);
+
+        if (oversized == null) {
+            Timeouts.apply(query);
+        }
+
+        if (isInt(method.getReturnType())) {
+
+            return (oversized != null) ? updateInChunks(query, oversized) : query.executeUpdate();
+
+        } else if (isVoid(method.getReturnType())) {
+
+            if (oversized != null) {
+                updateInChunks(query, oversized);
+            } else {
+                query.executeUpdate();
+            }
+
+            return null;
+
+        } else {
+
+            throw new IllegalArgumentException("Update methods must have a void or int return type");
+        }
+    }
+
+    /**
+     * The @QueryParam collection too large for one IN list, or null.
+     * Only one such collection per method can be split.
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     */
+    private static Parameter oversized(final EntityManager em, final Method method, final Object[] args) {
+        final Set<String> inLists = InLists.parameters(em, method);
+        Parameter oversized = null;
+
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+
+            if (queryParam != null && inLists.contains(queryParam.value()) && InLists.isOversized(parameter.getValue())) {
+                if (InLists.negated(em, method).contains(queryParam.value())) {
+                    throw new ValidationException(method.getName() + " cannot bind more than " + InLists.MAX + " " + queryParam.value()
+                            + " to a NOT IN list, it cannot be split");
+                }
+                if (oversized != null) {
+                    throw new ValidationException(method.getName() + " has more than one @QueryParam collection larger than " + InLists.MAX);
+                }
+                oversized = parameter;
+            }
+        }
+
+        return oversized;
+    }
+
+    /**
+     * Run a select once per chunk of the oversized collection, sorting
+     * the joined results again by the query's order by, if any
+     */
+    private static List<Object> selectInChunks(final EntityManager em, final Method method, final Query query, final Parameter oversized,
+                                               final String jpql) {
+        final String name = oversized.getAnnotation(QueryParam.class).value();
+        final List<String> order = Jpql.orderByItems(jpql);
+        final Comparator<Object> comparator = (order.isEmpty()) ? null : chunkOrder(em, method, jpql, order);
+        final List<Object> results = new ArrayList<Object>();
+
+        for (final List<Object> chunk : InLists.chunks((Collection<?>) oversized.getValue())) {
+            setParameter(query, PADDED, name, chunk);
+            Timeouts.apply(query);
+            results.addAll((List<?>) query.getResultList());
+        }
+
+        if (comparator != null) {
+            Collections.sort(results, comparator);
+        }
+
+        return results;
+    }
+
+    private static Comparator<Object> chunkOrder(final EntityManager em, final Method method, final String jpql, final List<String> order) {
+        final String variable = Jpql.fromVariable(jpql);
+
+        if (variable == null || !variable.equals(Jpql.selectedVariable(jpql))) {
+            throw new ValidationException("Cannot merge the ordered results of " + method.getName() + " run in chunks of "
+                    + InLists.MAX + ", select the entity or pass fewer values");
+        }
+
+        return PartitionedQuery.comparator(Queries.entity(em, Jpql.fromEntity(jpql)), variable, order, jpql);
+    }
+
+    private static int updateInChunks(final Query query, final Parameter oversized) {
+        final String name = oversized.getAnnotation(QueryParam.class).value();
+        int rows = 0;
+
+        for (final List<Object> chunk : InLists.chunks((Collection<?>) oversized.getValue())) {
+            setParameter(query, PADDED, name, chunk);
+            Timeouts.apply(query);
+            rows += query.executeUpdate();
+        }
+
+        return rows;
+    }
+
+    /**
+     * Run an update in chunks as @ChunkBy describes, summing the rows
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param jpql
+     * @return
+     * @throws Throwable
+     */
+    private static Object chunkedUpdate(final EntityManager em, final Method method, final Object[] args, final String jpql) throws Throwable {
+        final Class<?> returnType = method.getReturnType();
+
+        if (!isInt(returnType) && !isVoid(returnType)) {
+            throw new IllegalArgumentException("Update methods must have a void or int return type");
+        }
+
+        final int rows = ChunkedUpdate.of(method).execute(em, jpql, binder(em, method, args));
+
+        return (isVoid(returnType)) ? null : rows;
+    }
+
+    /**
+     * Run a select as concurrent partitions as @Partitioned describes
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param projection
+     * @param jpql
+     * @return
+     * @throws Throwable
+     */
+    private static Object partitioned(final EntityManager em, final Method method, final Object[] args, final Projection projection,
+                                      final String jpql) throws Throwable {
+        final boolean stream = Stream.class.equals(method.getReturnType());
+
+        if (!isList(method) && !stream) {
+            throw new ValidationException(method.getName() + " must return a List or Stream to be @Partitioned");
+        }
+
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            if ((parameter.isAnnotationPresent(Offset.class) || parameter.isAnnotationPresent(MaxResults.class)) && parameter.getValue() != null) {
+                throw new ValidationException(method.getName() + " cannot page through @Partitioned results");
+            }
+        }
+
+        final List<Object> results = PartitionedQuery.of(method).execute(em, jpql, binder(em, method, args));
+
+        final Object mapped = (projection != null) ? projection.map(results) : results;
+
+        return (stream) ? ((List<?>) mapped).stream() : mapped;
+    }
+
+    /**
+     * A list reading the results of a select a page at a time, as @Lazy describes
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param projection
+     * @param jpql
+     * @return
+     */
+    private static Object lazy(final EntityManager em, final Method method, final Object[] args, final Projection projection, final String jpql) {
+        final int pageSize = method.getAnnotation(Lazy.class).pageSize();
+
+        if (!method.getReturnType().isAssignableFrom(List.class)) {
+            throw new ValidationException(method.getName() + " must return a List to be @Lazy");
+        }
+
+        if (pageSize < 1) {
+            throw new ValidationException(method.getName() + " has a pageSize less than 1");
+        }
+
+        requireQueryParams(method, args);
+
+        final int offset = intArgument(method, args, Offset.class, 0);
+        final int limit = intArgument(method, args, MaxResults.class, Integer.MAX_VALUE);
+
+        return new LazyList(em, new PagedQuery(em, method, jpql, binder(em, method, args), projection), offset, limit, pageSize);
+    }
+
+    /**
+     * A publisher reading the results of a select in pages sized to demand
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param projection
+     * @param jpql
+     * @return
+     */
+    private static Object publisher(final EntityManager em, final Method method, final Object[] args, final Projection projection, final String jpql) {
+        requireQueryParams(method, args);
+
+        final int offset = intArgument(method, args, Offset.class, 0);
+        final int limit = intArgument(method, args, MaxResults.class, Integer.MAX_VALUE);
+
+        return new QueryPublisher(em, new PagedQuery(em, method, jpql, binder(em, method, args), projection), offset, limit);
+    }
+
+    /**
+     * Stream the results of a select to the OutputStream or Writer argument, as @Export describes
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param jpql
+     * @return
+     * @throws Throwable
+     */
+    private static Object export(final EntityManager em, final Method method, final Object[] args, final String jpql) throws Throwable {
+        final Class<?> returnType = method.getReturnType();
+
+        if (!isVoid(returnType) && !isInt(returnType) && !Long.class.equals(returnType) && !Long.TYPE.equals(returnType)) {
+            throw new IllegalArgumentException("Export methods must have a void, int or long return type");
+        }
+
+        final Exporter exporter = Exporter.of(em, method, jpql);
+        final Query query = em.createQuery(exporter.getJpql());
+
+        bindFilters(method, args, query);
+        bindQueryParams(em, method, args, query);
+
+        final Integer offset = (Integer) argument(method, args, Offset.class);
+        final Integer maxResults = (Integer) argument(method, args, MaxResults.class);
+
+        if (offset != null && maxResults != null) {
+            query.setFirstResult(offset);
+            query.setMaxResults(maxResults);
+        }
+
+        Timeouts.apply(query);
+
+        final long rows = exporter.export(query, args);
+
+        return (isVoid(returnType)) ? null : Primitives.convert(rows, returnType);
+    }
+
+    /**
+     * Fail now, rather than on another thread later, if a @QueryParam is null
+     *
+     * @param method
+     * @param args
+     */
+    private static void requireQueryParams(final Method method, final Object[] args) {
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+            if (queryParam != null && parameter.getValue() == null) {
+                throw new ValidationException(queryParam.value() + " is null");
+            }
+        }
+    }
+
+    /**
+     * The value of the int parameter carrying the annotation, or the default if there is none or it is null
+     *
+     * @param method
+     * @param args
+     * @param annotation
+     * @param defaultValue
+     * @return
+     */
+    private static int intArgument(final Method method, final Object[] args, final Class<? extends Annotation> annotation, final int defaultValue) {
+        final Object value = argument(method, args, annotation);
+
+        return (value != null) ? (Integer) value : defaultValue;
+    }
+
+    /**
+     * The argument of the parameter carrying the annotation, or null
+     *
+     * @param method
+     * @param args
+     * @param annotation
+     * @return
+     */
+    private static Object argument(final Method method, final Object[] args, final Class<? extends Annotation> annotation) {
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            if (parameter.isAnnotationPresent(annotation) && parameter.getValue() != null) {
+                return parameter.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Binds the @Filter and @QueryParam arguments of the call to the
+     * queries of operations that run more than one
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     */
+    private static Binder binder(final EntityManager em, final Method method, final Object[] args) {
+        return new Binder() {
+            @Override
+            public void bind(final Query query) {
+                bindFilters(method, args, query);
+                bindDeclaredQueryParams(em, method, args, query);
+            }
+        };
+    }
+
+    /**
+     * Bind the @QueryParam arguments the query actually uses, as the
+     * selects that find the chunks lack the parameters of the set clause
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @param query
+     */
+    private static void bindDeclaredQueryParams(final EntityManager em, final Method method, final Object[] args, final Query query) {
+        final Set<String> inLists = InLists.parameters(em, method);
+        final Set<String> declared = new HashSet<String>();
+        for (final jakarta.persistence.Parameter<?> parameter : query.getParameters()) {
+            declared.add((parameter.getName() != null) ? parameter.getName() : String.valueOf(parameter.getPosition()));
+        }
+
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+            if (queryParam != null) {
+                if (parameter.getValue() == null) {
+                    throw new ValidationException(queryParam.value() + " is null");
+                }
+
+                if (declared.contains(queryParam.value())) {
+                    setParameter(query, inLists, queryParam.value(), parameter.getValue());
+                }
+            }
+        }
+    }
+
+    private static void bindQueryParams(final EntityManager em, final Method method, final Object[] args, final Query query) {
+        final Set<String> inLists = InLists.parameters(em, method);
+
+        for (final Parameter parameter : Reflection.params(method, args)) {
+            final QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+            if (queryParam != null) {
+                if (parameter.getValue() == null) {
+                    throw new ValidationException(queryParam.value() + " is null");
+                }
+
+                setParameter(query, inLists, queryParam.value(), parameter.getValue());
+            }
+        }
+    }
+
+    /**
+     * Bind a named parameter, or a positional one if the name is a number.
+     * Collections bound to IN lists are padded to a bucket size so the
+     * statement is reused.
+     *
+     * @param query
+     * @param inLists the parameters that are IN lists
+     * @param name
+     * @param value
+     */
+    private static void setParameter(final Query query, final Set<String> inLists, final String name, final Object value) {
+        final Object bound = (inLists.contains(name)) ? InLists.pad(value) : value;
+
+        if (isPosition(name)) {
+
+            query.setParameter(Integer.parseInt(name), bound);
+
+        } else {
+
+            query.setParameter(name, bound);
+        }
+    }
+
+    /**
+     * UPDATE
+     * <p/>
+     * Perform a merge on the passed in entity
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object merge(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final Class<?> entityClass = method.getParameterTypes()[0];
+        final Object entity = args[0];
+
+        if (entity == null) {
+            throw new ValidationException(entityClass.getSimpleName() + " object is null");
+        }
+
+        return em.merge(entity);
+    }
+
+    /**
+     * UPDATE
+     * <p/>
+     * Write only the given attributes with a single bulk update, without
+     * loading the entity.  Managed instances are not refreshed.
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object patch(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final int rows = PatchQuery.of(em, method).execute(em, args);
+
+        if (isInt(method.getReturnType())) {
+
+            return rows;
+
+        } else if (isVoid(method.getReturnType())) {
+
+            return null;
+
+        } else {
+
+            throw new IllegalArgumentException("Patch methods must have a void or int return type");
+        }
+    }
+
+    /**
+     * CREATE or UPDATE
+     * <p/>
+     * Persist the entities that do not exist yet and merge the others,
+     * resolving which is which one chunk at a time
+     *
+     * @param em
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public static Object upsert(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final int chunkSize = method.getAnnotation(Upsert.class).chunkSize();
+        final Object arg = args[0];
+
+        if (arg == null) {
+            throw new ValidationException(method.getParameterTypes()[0].getSimpleName() + " object is null");
+        }
+
+        if (chunkSize < 1) {
+            throw new ValidationException(method.getName() + " has a chunkSize less than 1");
+        }
+
+        final Collection<?> entities = (arg instanceof Collection) ? (Collection<?>) arg : Collections.singletonList(arg);
+        final List<Object> results = new ArrayList<Object>(entities.size());
+        final List<Object> chunk = new ArrayList<Object>(Math.min(chunkSize, entities.size()));
+
+        for (final Object entity : entities) {
+            if (entity == null) {
+                throw new ValidationException("Collection contains a null object");
+            }
+
+            chunk.add(entity);
+
+            if (chunk.size() == chunkSize) {
+                upsert(em, chunk, results);
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            upsert(em, chunk, results);
+        }
+
+        final Class<?> returnType = method.getReturnType();
+
+        if (isVoid(returnType)) {
+
+            return null;
+
+        } else if (isInt(returnType)) {
+
+            return results.size();
+
+        } else if (arg instanceof Collection) {
+
+            return results;
+
+        } else {
+
+            return results.get(0);
+        }
+    }
+
+    private static void upsert(final EntityManager em, final List<Object> chunk, final List<Object> results) {
+        final EntityType<?> entity = em.getMetamodel().entity(chunk.get(0).getClass());
+        final SingularAttribute<?, ?> id = Queries.idAttribute(entity);
+
+        // composite ids cannot be looked up with IN, merge inserts or updates those one by one
+        if (id == null) {
+            for (final Object object : chunk) {
+                results.add(em.merge(object));
+            }
+            em.flush();
+            return;
+        }
+
+        final List<Object> keys = new ArrayList<Object>(chunk.size());
+        for (final Object object : chunk) {
+            final Object key = Reflection.get(id.getJavaMember(), object);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+
+        final Set<Object> existing = new HashSet<Object>();
+        if (!keys.isEmpty()) {
+            final Query query = em.createQuery("select x from " + entity.getName() + " x where x." + id.getName() + " in :keys");
+            query.setParameter("keys", keys);
+            Timeouts.apply(query);
+
+            for (final Object found : query.getResultList()) {
+                existing.add(Reflection.get(id.getJavaMember(), found));
+            }
+        }
+
+        for (final Object object : chunk) {
+            final Object key = Reflection.get(id.getJavaMember(), object);
+
+            if (key != null && existing.contains(key)) {
+                results.add(em.merge(object));
+            } else {
+                em.persist(object);
+                results.add(object);
+            }
+        }
+
+        em.flush();
     }
 
     /**
@@ -311,6 +1447,26 @@ public class PersistenceHandler {
         return Collection.class.isAssignableFrom(method.getReturnType());
     }
 
+    /**
+     * Is the parameter name a position such as "1"?
+     *
+     * @param name
+     * @return
+     */
+    private static boolean isPosition(final String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Is the specified type an int?
      *
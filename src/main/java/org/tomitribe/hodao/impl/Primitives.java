@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Support for select methods returning primitives, such as long[]
+ * for id queries or int for counts.  Rows are unboxed into growable
+ * primitive buffers as they are read, so no List of boxed values
+ * is ever built.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Primitives {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Primitives() {
+    }
+
+    /**
+     * Is the specified type a primitive array or stream?
+     *
+     * @param clazz
+     * @return
+     */
+    public static boolean isBuffered(final Class<?> clazz) {
+        return long[].class.equals(clazz) || int[].class.equals(clazz) || double[].class.equals(clazz)
+                || LongStream.class.equals(clazz) || IntStream.class.equals(clazz) || DoubleStream.class.equals(clazz);
+    }
+
+    /**
+     * Drain the rows into the primitive array or stream type specified.
+     * The row stream is closed when done.
+     *
+     * @param rows
+     * @param type one of the types accepted by isBuffered
+     * @return
+     */
+    public static Object collect(final Stream<?> rows, final Class<?> type) {
+        try {
+
+            final Iterator<?> iterator = rows.iterator();
+
+            if (long[].class.equals(type)) {
+                return longs(iterator);
+            }
+            if (LongStream.class.equals(type)) {
+                return LongStream.of(longs(iterator));
+            }
+            if (int[].class.equals(type)) {
+                return ints(iterator);
+            }
+            if (IntStream.class.equals(type)) {
+                return IntStream.of(ints(iterator));
+            }
+            if (double[].class.equals(type)) {
+                return doubles(iterator);
+            }
+            if (DoubleStream.class.equals(type)) {
+                return DoubleStream.of(doubles(iterator));
+            }
+
+            throw new IllegalArgumentException("Not a primitive array or stream type: " + type.getName());
+
+        } finally {
+            rows.close();
+        }
+    }
+
+    private static long[] longs(final Iterator<?> rows) {
+        long[] buffer = new long[INITIAL_CAPACITY];
+        int size = 0;
+
+        while (rows.hasNext()) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size << 1);
+            }
+            buffer[size++] = number(rows.next()).longValue();
+        }
+
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private static int[] ints(final Iterator<?> rows) {
+        int[] buffer = new int[INITIAL_CAPACITY];
+        int size = 0;
+
+        while (rows.hasNext()) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size << 1);
+            }
+            buffer[size++] = number(rows.next()).intValue();
+        }
+
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private static double[] doubles(final Iterator<?> rows) {
+        double[] buffer = new double[INITIAL_CAPACITY];
+        int size = 0;
+
+        while (rows.hasNext()) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size << 1);
+            }
+            buffer[size++] = number(rows.next()).doubleValue();
+        }
+
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private static Number number(final Object row) {
+        if (row instanceof Number) {
+            return (Number) row;
+        }
+
+        if (row == null) {
+            throw new IllegalStateException("Query returned a null value which cannot be stored as a primitive");
+        }
+
+        throw new IllegalStateException("Query returned a " + row.getClass().getName() + " where a number was expected");
+    }
+
+    /**
+     * Adapt a column value to the property type, widening or narrowing
+     * numbers and substituting defaults for null primitives.
+     *
+     * @param value
+     * @param type
+     * @return
+     */
+    public static Object convert(final Object value, final Class<?> type) {
+        if (value == null) {
+            if (!type.isPrimitive()) {
+                return null;
+            }
+            if (Boolean.TYPE.equals(type)) {
+                return false;
+            }
+            if (Character.TYPE.equals(type)) {
+                return (char) 0;
+            }
+            return convert(0, type);
+        }
+
+        if (!(value instanceof Number) || type.isInstance(value)) {
+            return value;
+        }
+
+        final Number number = (Number) value;
+
+        if (Long.class.equals(type) || Long.TYPE.equals(type)) {
+            return number.longValue();
+        }
+        if (Integer.class.equals(type) || Integer.TYPE.equals(type)) {
+            return number.intValue();
+        }
+        if (Double.class.equals(type) || Double.TYPE.equals(type)) {
+            return number.doubleValue();
+        }
+        if (Float.class.equals(type) || Float.TYPE.equals(type)) {
+            return number.floatValue();
+        }
+        if (Short.class.equals(type) || Short.TYPE.equals(type)) {
+            return number.shortValue();
+        }
+        if (Byte.class.equals(type) || Byte.TYPE.equals(type)) {
+            return number.byteValue();
+        }
+
+        return value;
+    }
+
+}
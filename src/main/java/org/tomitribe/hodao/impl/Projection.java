@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps query results onto a type that is not an entity, such as an
+ * interface, a record or a plain class.  The type is taken from the
+ * return type of the method, List&lt;BookSummary&gt; for example.
+ * <p/>
+ * For queries selecting a whole entity, "select b from Book b ...",
+ * the select clause is rewritten to fetch only the attributes the
+ * projection declares.  For queries with an explicit select list
+ * the items are matched to properties by result variable or last
+ * attribute name.  Either way the rows are scalar values, so nothing
+ * is hydrated and nothing enters the persistence context.
+ * <p/>
+ * The rewritten JPQL and the property to column table are computed
+ * once per method.  Interface projections may declare default methods,
+ * which are run on the projected values; any other method must be a
+ * getter.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Projection {
+
+    private static final Map<Method, Projection> PROJECTIONS = new ConcurrentHashMap<Method, Projection>();
+
+    private static final Projection NONE = new Projection();
+
+    private final Class<?> type;
+    private final String jpql;
+    private final Object[] accessors;
+    private final Class<?>[] types;
+    private final int[] columns;
+    private final int width;
+    private final Constructor<?> constructor;
+    private final Map<Method, Integer> getters;
+    private final Map<Method, MethodHandle> defaults;
+
+    private Projection() {
+        this.type = null;
+        this.jpql = null;
+        this.accessors = null;
+        this.types = null;
+        this.columns = null;
+        this.width = 0;
+        this.constructor = null;
+        this.getters = null;
+        this.defaults = null;
+    }
+
+    private Projection(final Class<?> type, final String query) {
+        this.type = type;
+
+        final Map<String, Object> properties = properties(type);
+        final String[] names = properties.keySet().toArray(new String[0]);
+
+        this.accessors = properties.values().toArray();
+        this.types = new Class<?>[accessors.length];
+        for (int i = 0; i < accessors.length; i++) {
+            types[i] = typeOf(accessors[i]);
+        }
+
+        this.columns = new int[names.length];
+
+        final String variable = Jpql.selectedVariable(query);
+        if (variable != null) {
+
+            final StringBuilder items = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    items.append(", ");
+                }
+                items.append(variable).append('.').append(names[i]);
+                columns[i] = i;
+            }
+
+            this.jpql = Jpql.replaceSelectClause(query, items.toString());
+            this.width = names.length;
+
+        } else {
+
+            final List<String> items = Jpql.selectItems(query);
+            if (items.isEmpty()) {
+                throw new ValidationException("Cannot project a query without a select clause onto " + type.getName());
+            }
+
+            final List<String> itemNames = new ArrayList<String>();
+            for (final String item : items) {
+                itemNames.add(Jpql.itemName(item));
+            }
+
+            boolean matched = false;
+            for (int i = 0; i < names.length; i++) {
+                columns[i] = itemNames.indexOf(names[i]);
+                matched |= columns[i] >= 0;
+            }
+
+            if (!matched) {
+                throw new ValidationException("No select item matches a property of " + type.getName());
+            }
+
+            this.jpql = query;
+            this.width = items.size();
+        }
+
+        if (type.isInterface()) {
+            this.constructor = null;
+            this.getters = new HashMap<Method, Integer>();
+            for (int i = 0; i < accessors.length; i++) {
+                getters.put((Method) accessors[i], i);
+            }
+            this.defaults = defaults(type);
+        } else {
+            this.constructor = constructor(type, types);
+            this.getters = null;
+            this.defaults = null;
+        }
+    }
+
+    /**
+     * The projection for the method's results or null if the results
+     * are entities or simple values.
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static Projection of(final EntityManager em, final Method method) {
+        Projection projection = PROJECTIONS.get(method);
+
+        if (projection == null) {
+            final Class<?> type = Reflection.elementType(method);
+
+            if (isProjection(em, type)) {
+                final String query = Queries.jpql(em, method);
+                final String select = Jpql.selectClause(query);
+
+                // constructor expressions already produce the right type
+                projection = (select != null && select.regionMatches(true, 0, "new ", 0, 4)) ? NONE : new Projection(type, query);
+            } else {
+                projection = NONE;
+            }
+
+            PROJECTIONS.put(method, projection);
+        }
+
+        return (projection == NONE) ? null : projection;
+    }
+
+    /**
+     * The query fetching just the projected attributes
+     *
+     * @return
+     */
+    public String getJpql() {
+        return jpql;
+    }
+
+    /**
+     * Convert the result of a select, either a single row or a list of rows
+     *
+     * @param result
+     * @return
+     */
+    public Object map(final Object result) {
+        if (result instanceof Collection) {
+            final Collection<?> rows = (Collection<?>) result;
+            final List<Object> list = new ArrayList<Object>(rows.size());
+            for (final Object row : rows) {
+                list.add(mapRow(row));
+            }
+            return list;
+        }
+
+        return (result == null) ? null : mapRow(result);
+    }
+
+    /**
+     * Convert a single row
+     *
+     * @param row
+     * @return
+     */
+    public Object mapRow(final Object row) {
+        if (type.isInstance(row)) {
+            return row;
+        }
+
+        final Object[] cells = (width == 1) ? new Object[]{row} : (Object[]) row;
+        final Object[] values = new Object[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = Primitives.convert((columns[i] < 0) ? null : cells[columns[i]], types[i]);
+        }
+
+        try {
+            if (getters != null) {
+                return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new Values(values));
+            }
+
+            if (constructor.getParameterTypes().length > 0) {
+                return constructor.newInstance(values);
+            }
+
+            final Object instance = constructor.newInstance();
+            for (int i = 0; i < accessors.length; i++) {
+                ((Field) accessors[i]).set(instance, values[i]);
+            }
+            return instance;
+
+        } catch (final InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create " + type.getName(), e.getCause());
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Backs interface projections
+     */
+    private class Values implements InvocationHandler {
+
+        private final Object[] values;
+
+        private Values(final Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Integer index = getters.get(method);
+            if (index != null) {
+                return values[index];
+            }
+
+            final MethodHandle handle = defaults.get(method);
+            if (handle != null) {
+                return handle.bindTo(proxy).invokeWithArguments((args == null) ? new Object[0] : args);
+            }
+
+            if ("equals".equals(method.getName()) && args != null && args.length == 1) {
+                if (args[0] == null || !Proxy.isProxyClass(args[0].getClass())) {
+                    return false;
+                }
+                final Object other = Proxy.getInvocationHandler(args[0]);
+                return other instanceof Values && Arrays.equals(values, ((Values) other).values);
+            }
+
+            if ("hashCode".equals(method.getName()) && args == null) {
+                return Arrays.hashCode(values);
+            }
+
+            if ("toString".equals(method.getName()) && args == null) {
+                return type.getSimpleName() + Arrays.toString(values);
+            }
+
+            throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    static boolean isProjection(final EntityManager em, final Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || type.isEnum() || Object.class.equals(type)) {
+            return false;
+        }
+
+        final String name = type.getName();
+        if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jakarta.")) {
+            return false;
+        }
+
+        return !Queries.isManaged(em, type);
+    }
+
+    /**
+     * Property name to accessor, in the order values will be supplied.
+     * Getter methods for interfaces, record components for records
+     * and fields for classes.
+     */
+    private static Map<String, Object> properties(final Class<?> type) {
+        final Map<String, Object> properties = new TreeMap<String, Object>();
+
+        if (type.isInterface()) {
+
+            for (final Method method : type.getMethods()) {
+                if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                    continue;
+                }
+                if (method.getParameterTypes().length > 0 || Void.TYPE.equals(method.getReturnType())) {
+                    throw new ValidationException(type.getName() + " cannot be used as a projection, " + method.getName()
+                            + " is neither a getter nor a default method");
+                }
+                properties.put(propertyName(method), method);
+            }
+
+        } else if (isRecord(type)) {
+
+            // ordered as the canonical constructor expects, not sorted
+            final Map<String, Object> components = new LinkedHashMap<String, Object>();
+            try {
+                final Object[] recordComponents = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+                for (final Object component : recordComponents) {
+                    final Method accessor = (Method) component.getClass().getMethod("getAccessor").invoke(component);
+                    components.put(accessor.getName(), accessor);
+                }
+            } catch (final ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot read record components of " + type.getName(), e);
+            }
+            return components;
+
+        } else {
+
+            for (Class<?> c = type; c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    final int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    if (!properties.containsKey(field.getName())) {
+                        properties.put(field.getName(), field);
+                    }
+                }
+            }
+        }
+
+        if (properties.isEmpty()) {
+            throw new ValidationException(type.getName() + " declares no properties to project onto");
+        }
+
+        return properties;
+    }
+
+    /**
+     * The default methods of the interface, ready to be called on a proxy
+     */
+    private static Map<Method, MethodHandle> defaults(final Class<?> type) {
+        final Map<Method, MethodHandle> defaults = new HashMap<Method, MethodHandle>();
+
+        for (final Method method : type.getMethods()) {
+            if (!method.isDefault()) {
+                continue;
+            }
+
+            final Class<?> declaring = method.getDeclaringClass();
+            try {
+                defaults.put(method, MethodHandles.privateLookupIn(declaring, MethodHandles.lookup()).unreflectSpecial(method, declaring));
+            } catch (final IllegalAccessException e) {
+                throw new ValidationException(type.getName() + " cannot be used as a projection, its default method "
+                        + method.getName() + " cannot be called: " + e.getMessage());
+            }
+        }
+
+        return defaults;
+    }
+
+    private static boolean isObjectMethod(final Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Constructor<?> constructor(final Class<?> type, final Class<?>[] types) {
+        try {
+            final Constructor<?> constructor = isRecord(type) ? type.getDeclaredConstructor(types) : type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (final NoSuchMethodException e) {
+            throw new ValidationException(type.getName() + " needs a no-arg constructor to be used as a projection");
+        }
+    }
+
+    private static boolean isRecord(final Class<?> type) {
+        final Class<?> superclass = type.getSuperclass();
+        return superclass != null && "java.lang.Record".equals(superclass.getName());
+    }
+
+    private static String propertyName(final Method method) {
+        final String name = method.getName();
+
+        if (name.startsWith("get") && name.length() > 3) {
+            return Character.toLowerCase(name.charAt(3)) + name.substring(4);
+        }
+
+        if (name.startsWith("is") && name.length() > 2 && isBoolean(method.getReturnType())) {
+            return Character.toLowerCase(name.charAt(2)) + name.substring(3);
+        }
+
+        return name;
+    }
+
+    private static boolean isBoolean(final Class<?> clazz) {
+        return Boolean.class.equals(clazz) || Boolean.TYPE.equals(clazz);
+    }
+
+    private static Class<?> typeOf(final Object accessor) {
+        if (accessor instanceof Field) {
+            return ((Field) accessor).getType();
+        }
+        return ((Method) accessor).getReturnType();
+    }
+}
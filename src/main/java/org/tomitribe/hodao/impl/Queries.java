@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.EntityType;
+import org.tomitribe.hodao.NamedQuery;
+import org.tomitribe.hodao.QueryString;
+import org.tomitribe.hodao.ValidationException;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.metamodel.ManagedType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the JPQL text behind the query annotations of a method.
+ * <p/>
+ * The JPA api offers no way to read a named query back, so the
+ * jakarta.persistence.NamedQuery annotations of the managed types
+ * are scanned instead.  Lookups are done once per name.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Queries {
+
+    private static final Map<String, String> NAMED = new ConcurrentHashMap<String, String>();
+
+    private Queries() {
+    }
+
+    /**
+     * The JPQL of the @NamedQuery or @QueryString on the method, or
+     * the JPQL derived from its name
+     *
+     * @param em
+     * @param method
+     * @return
+     */
+    public static String jpql(final EntityManager em, final Method method) {
+        final QueryString queryString = method.getAnnotation(QueryString.class);
+        if (queryString != null) {
+            return queryString.value();
+        }
+
+        final NamedQuery namedQuery = method.getAnnotation(NamedQuery.class);
+        if (namedQuery != null) {
+            return named(em, namedQuery.value());
+        }
+
+        final DerivedQuery derivedQuery = DerivedQuery.of(em, method);
+        if (derivedQuery != null) {
+            return derivedQuery.getJpql();
+        }
+
+        throw new ValidationException("No query declared on method " + method.getName());
+    }
+
+    /**
+     * The JPQL of a named query declared via annotation on a managed type
+     *
+     * @param em
+     * @param name
+     * @return
+     */
+    public static String named(final EntityManager em, final String name) {
+        final String cached = NAMED.get(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        for (final ManagedType<?> type : em.getMetamodel().getManagedTypes()) {
+            final Class<?> clazz = type.getJavaType();
+
+            final jakarta.persistence.NamedQuery single = clazz.getAnnotation(jakarta.persistence.NamedQuery.class);
+            if (single != null) {
+                NAMED.putIfAbsent(single.name(), single.query());
+            }
+
+            final NamedQueries multiple = clazz.getAnnotation(NamedQueries.class);
+            if (multiple != null) {
+                for (final jakarta.persistence.NamedQuery query : multiple.value()) {
+                    NAMED.putIfAbsent(query.name(), query.query());
+                }
+            }
+        }
+
+        final String jpql = NAMED.get(name);
+        if (jpql == null) {
+            throw new ValidationException("Cannot find the JPQL of named query " + name);
+        }
+
+        return jpql;
+    }
+
+    /**
+     * Is the type an entity, embeddable or mapped superclass of the unit?
+     *
+     * @param em
+     * @param type
+     * @return
+     */
+    public static boolean isManaged(final EntityManager em, final Class<?> type) {
+        for (final ManagedType<?> managedType : em.getMetamodel().getManagedTypes()) {
+            if (type.equals(managedType.getJavaType())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The class itself or nearest superclass that is managed, as
+     * providers may hand out subclasses of entity classes, or null
+     *
+     * @param em
+     * @param type
+     * @return
+     */
+    public static Class<?> managedClass(final EntityManager em, final Class<?> type) {
+        Class<?> managed = type;
+
+        while (managed != null && !isManaged(em, managed)) {
+            managed = managed.getSuperclass();
+        }
+
+        return managed;
+    }
+
+    /**
+     * Make a query known to later named lookups
+     *
+     * @param name
+     * @param jpql
+     */
+    public static void register(final String name, final String jpql) {
+        NAMED.put(name, jpql);
+    }
+
+    /**
+     * The entity named by @EntityType on the method or its class
+     *
+     * @param method
+     * @return
+     */
+    public static Class<?> entityType(final Method method) {
+        EntityType entityType = method.getAnnotation(EntityType.class);
+        if (entityType == null) {
+            entityType = method.getDeclaringClass().getAnnotation(EntityType.class);
+        }
+
+        if (entityType == null) {
+            throw new ValidationException("Cannot tell which entity " + method.getName() + " queries, declare it with @EntityType");
+        }
+
+        return entityType.value();
+    }
+
+    /**
+     * The name of the single id attribute of the named entity, or null
+     * if the entity is unknown or has a composite id.
+     *
+     * @param em
+     * @param entityName
+     * @return
+     */
+    public static String idAttribute(final EntityManager em, final String entityName) {
+        final jakarta.persistence.metamodel.EntityType<?> entity = entity(em, entityName);
+        if (entity == null) {
+            return null;
+        }
+
+        final SingularAttribute<?, ?> attribute = idAttribute(entity);
+        return (attribute == null) ? null : attribute.getName();
+    }
+
+    /**
+     * The entity with the specified entity name, or null
+     *
+     * @param em
+     * @param entityName
+     * @return
+     */
+    public static jakarta.persistence.metamodel.EntityType<?> entity(final EntityManager em, final String entityName) {
+        for (final jakarta.persistence.metamodel.EntityType<?> entity : em.getMetamodel().getEntities()) {
+            if (entity.getName().equals(entityName)) {
+                return entity;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The single id attribute of the entity, or null if it has a composite id
+     *
+     * @param entity
+     * @return
+     */
+    public static SingularAttribute<?, ?> idAttribute(final jakarta.persistence.metamodel.EntityType<?> entity) {
+        if (!entity.hasSingleIdAttribute()) {
+            return null;
+        }
+
+        for (final SingularAttribute<?, ?> attribute : entity.getSingularAttributes()) {
+            if (attribute.isId()) {
+                return attribute;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The version attribute of the entity, or null if it has none
+     *
+     * @param entity
+     * @return
+     */
+    public static SingularAttribute<?, ?> versionAttribute(final jakarta.persistence.metamodel.EntityType<?> entity) {
+        for (final SingularAttribute<?, ?> attribute : entity.getSingularAttributes()) {
+            if (attribute.isVersion()) {
+                return attribute;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Flow.Publisher returned by select methods declared to return one.
+ * Each subscription reads pages sized to the outstanding demand, at
+ * most MAX_PAGE rows, on an EntityManager of its own that is closed on
+ * completion, error or cancellation.  No cursor stays open between
+ * pages, so a slow subscriber holds no database resources, and the
+ * rows of a page are detached once it is delivered, so a long stream
+ * does not pile up in the persistence context.
+ * <p/>
+ * After the first page, each page is read as the rows sorting after the
+ * last row delivered where the select allows it, rather than by offset,
+ * so rows written between pages are neither skipped nor repeated.  Every
+ * page is bounded by the Deadline of the call that returned the publisher.
+ * <p/>
+ * Signals are delivered from the executor, one thread at a time.
+ *
+ * @version $Revision$ $Date$
+ */
+public class QueryPublisher implements Flow.Publisher<Object> {
+
+    private static final int MAX_PAGE = 1000;
+
+    private final EntityManagerFactory emf;
+    private final Executor executor;
+    private final PagedQuery query;
+    private final Deadline deadline;
+    private final int offset;
+    private final int limit;
+
+    public QueryPublisher(final EntityManager em, final PagedQuery query, final int offset, final int limit) {
+        this.emf = em.getEntityManagerFactory();
+        this.executor = Concurrency.executor();
+        this.query = query;
+        this.deadline = Deadline.current();
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Object> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+
+        subscriber.onSubscribe(new QuerySubscription(subscriber));
+    }
+
+    private class QuerySubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super Object> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // only touched by the thread draining
+        private EntityManager em;
+        private int position;
+        private Object[] key;
+        private boolean done;
+
+        private QuerySubscription(final Flow.Subscriber<? super Object> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested " + n + " items, the request must be positive");
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, (Long.MAX_VALUE - current < n) ? Long.MAX_VALUE : current + n));
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (work.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            try {
+                while (!done) {
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+
+                    if (error != null) {
+                        finish();
+                        subscriber.onError(error);
+                        return;
+                    }
+
+                    final long requested = demand.get();
+                    if (requested == 0) {
+                        return;
+                    }
+
+                    final int length = (int) Math.min(Math.min(requested, MAX_PAGE), (long) limit - position);
+                    final List<?> page = (length <= 0) ? null : read(length);
+
+                    if (page != null) {
+                        for (final Object row : page) {
+                            if (cancelled) {
+                                break;
+                            }
+                            subscriber.onNext(row);
+                        }
+
+                        position += page.size();
+                        key = page.isEmpty() ? null : query.key(page.get(page.size() - 1));
+                        em.clear();
+                        if (requested != Long.MAX_VALUE) {
+                            demand.addAndGet(-page.size());
+                        }
+                    }
+
+                    if (!cancelled && (page == null || page.size() < length)) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                }
+            } catch (final Throwable t) {
+                // a subscriber throwing from onComplete or onError is not signalled again
+                final boolean signalled = done;
+                finish();
+                if (!signalled) {
+                    subscriber.onError(t);
+                }
+            }
+        }
+
+        private List<?> read(final int length) {
+            if (em == null) {
+                em = emf.createEntityManager();
+            }
+
+            if (key != null) {
+                return query.readAfter(em, key, length, deadline);
+            }
+
+            return query.read(em, offset + position, length, deadline);
+        }
+
+        private void finish() {
+            done = true;
+
+            if (em != null) {
+                em.close();
+                em = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Lock;
+import org.tomitribe.hodao.ReadReplica;
+
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import java.lang.reflect.Method;
+
+/**
+ * Decides whether a call may read from a replica, and remembers which
+ * transactions have written through the primary so they keep reading
+ * from it.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Replicas {
+
+    /**
+     * The key of the written mark among the transaction's resources
+     */
+    private static final Object WROTE = new Object();
+
+    private Replicas() {
+    }
+
+    /**
+     * May the call run on a replica?
+     *
+     * @param em the primary
+     * @param method
+     * @return
+     */
+    public static boolean isReplicaRead(final EntityManager em, final Method method) {
+        ReadReplica readReplica = method.getAnnotation(ReadReplica.class);
+        if (readReplica == null) {
+            readReplica = method.getDeclaringClass().getAnnotation(ReadReplica.class);
+        }
+
+        if (readReplica == null || !readReplica.value()) {
+            return false;
+        }
+
+        if (method.isAnnotationPresent(Lock.class) || Operations.isWrite(em, method)) {
+            return false;
+        }
+
+        return !hasWritten();
+    }
+
+    /**
+     * Note the current transaction, if any, has written
+     */
+    public static void wrote() {
+        final TransactionSynchronizationRegistry registry = Transactions.inTransaction();
+
+        if (registry != null) {
+            registry.putResource(WROTE, Boolean.TRUE);
+        }
+    }
+
+    private static boolean hasWritten() {
+        final TransactionSynchronizationRegistry registry = Transactions.inTransaction();
+
+        return registry != null && registry.getResource(WROTE) != null;
+    }
+}
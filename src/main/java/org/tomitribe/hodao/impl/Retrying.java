@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Merge;
+import org.tomitribe.hodao.Metrics;
+import org.tomitribe.hodao.Persist;
+import org.tomitribe.hodao.Remove;
+import org.tomitribe.hodao.Retry;
+import org.tomitribe.hodao.Upsert;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a @Retry method until an attempt succeeds, fails with an
+ * exception it should not retry, or the attempts run out.
+ * <p/>
+ * Update statements, derived deletes and @Patch read the rows they
+ * change again when they run, so they are simply run again.  A @Merge
+ * is reloaded and its changes reapplied: the row is read as the first
+ * attempt starts, and on a conflict the attributes the caller changed
+ * from it are set on the row as it is now, unless the other
+ * transaction changed them too.  @Persist, @Remove and @Upsert write
+ * the caller's copy as it is and are not retried.
+ * <p/>
+ * Calls made within the caller's transaction are tried once, as a
+ * failed attempt leaves that transaction fit only for rollback.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Retrying {
+
+    /**
+     * Writes of the caller's copy of an entity, with nothing to reapply
+     */
+    private static final List<Class<? extends Annotation>> ENTITY_WRITES = Arrays.<Class<? extends Annotation>>asList(
+            Persist.class, Remove.class, Upsert.class);
+
+    private Retrying() {
+    }
+
+    public static Object invoke(final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final Retry retry = method.getAnnotation(Retry.class);
+
+        if (!Operations.isWrite(em, method)) {
+            throw new ValidationException(method.getName() + " cannot be @Retry, it is not a write");
+        }
+
+        for (final Class<? extends Annotation> write : ENTITY_WRITES) {
+            if (method.isAnnotationPresent(write)) {
+                throw new ValidationException(method.getName() + " cannot be @Retry, @" + write.getSimpleName()
+                        + " writes the caller's copy of the entity, which another attempt would not refresh");
+            }
+        }
+
+        final boolean merge = method.isAnnotationPresent(Merge.class);
+
+        if (merge && Collection.class.isAssignableFrom(method.getParameterTypes()[0])) {
+            throw new ValidationException(method.getName() + " cannot be @Retry, only a @Merge of a single entity can be reapplied");
+        }
+
+        if (retry.attempts() < 1 || retry.backoff() < 0 || retry.jitter() < 0 || retry.jitter() > 1) {
+            throw new ValidationException(method.getName() + " needs at least one attempt, a backoff of zero or more and a jitter between 0 and 1");
+        }
+
+        if (Transactions.isActive(em)) {
+            return once(retry, em, method, args);
+        }
+
+        final Replay replay = (merge) ? new Replay(method, args[0]) : null;
+
+        for (int attempt = 1; ; attempt++) {
+            final boolean again = attempt > 1;
+
+            try {
+                final Object result = Transactions.inNewTransaction(em, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        if (replay != null && again) {
+                            return replay.reapply(em);
+                        }
+
+                        if (replay != null) {
+                            replay.read(em);
+                        }
+
+                        final Object result = PersistenceHandler.call(em, method, args);
+
+                        // conflicts surface here rather than wrapped by the commit
+                        em.flush();
+
+                        return result;
+                    }
+                });
+
+                if (again) {
+                    Metrics.increment(method, Metrics.RECOVERED);
+                }
+
+                return result;
+
+            } catch (final Exception e) {
+
+                // a merge that cannot be reapplied would fail the same way
+                if (!isRetryable(retry, e) || (replay != null && !replay.canReapply())) {
+                    throw e;
+                }
+
+                if (attempt >= retry.attempts()) {
+                    Metrics.increment(method, Metrics.EXHAUSTED);
+                    throw e;
+                }
+
+                Metrics.increment(method, Metrics.RETRIED);
+                pause(retry, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Run the one attempt the caller's transaction allows, saying why a
+     * failure that would have been retried was not
+     */
+    private static Object once(final Retry retry, final EntityManager em, final Method method, final Object[] args) throws Exception {
+        try {
+            return PersistenceHandler.call(em, method, args);
+        } catch (final Exception e) {
+            if (isRetryable(retry, e)) {
+                Metrics.increment(method, Metrics.EXHAUSTED);
+                e.addSuppressed(new IllegalStateException(method.getName() + " was not retried, @Retry only retries calls made outside a transaction"));
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isRetryable(final Retry retry, final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = (cause.getCause() == cause) ? null : cause.getCause()) {
+            for (final Class<? extends Exception> type : retry.on()) {
+                if (type.isInstance(cause)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void pause(final Retry retry, final int attempt, final Exception failure) throws Exception {
+        final long delay = retry.backoff() << Math.min(attempt - 1, 16);
+        final long jitter = (long) (delay * retry.jitter() * ThreadLocalRandom.current().nextDouble());
+
+        try {
+            Thread.sleep(delay - jitter);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * The changes a @Merge makes to the row it was based on, to be
+     * made again to the row as another transaction left it
+     */
+    private static class Replay {
+
+        private final Method method;
+        private final Object entity;
+
+        private Class<?> type;
+        private Object key;
+        private SingularAttribute<?, ?> version;
+
+        /**
+         * Attribute to the value the caller set, for the attributes it changed
+         */
+        private Map<Member, Object> changes;
+
+        /**
+         * Attribute to the value in the row the caller's copy was based on
+         */
+        private Map<Member, Object> base;
+
+        private Replay(final Method method, final Object entity) {
+            this.method = method;
+            this.entity = entity;
+        }
+
+        /**
+         * Read the row the caller's copy is based on, if it is still
+         * the one in the database.  Only entities whose attributes are
+         * all basic can be reapplied.
+         */
+        private void read(final EntityManager em) {
+            if (entity == null) {
+                return;
+            }
+
+            final Class<?> entityClass = Queries.managedClass(em, entity.getClass());
+            final EntityType<?> entityType = (entityClass == null) ? null : em.getMetamodel().entity(entityClass);
+            final SingularAttribute<?, ?> id = (entityType == null) ? null : Queries.idAttribute(entityType);
+
+            if (id == null || !entityType.getPluralAttributes().isEmpty()) {
+                return;
+            }
+
+            final Map<Member, Object> values = new LinkedHashMap<Member, Object>();
+            for (final SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+                if (attribute.isVersion()) {
+                    version = attribute;
+                } else if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.BASIC) {
+                    return;
+                } else if (!attribute.isId()) {
+                    values.put(attribute.getJavaMember(), null);
+                }
+            }
+
+            key = Reflection.get(id.getJavaMember(), entity);
+            final Object row = (key == null || version == null) ? null : em.find(entityClass, key, Timeouts.properties());
+
+            // a copy already stale has no known base, its changes cannot be told from the other transaction's
+            if (row == null || !Objects.equals(version(entity), version(row))) {
+                return;
+            }
+
+            base = new LinkedHashMap<Member, Object>();
+            changes = new LinkedHashMap<Member, Object>();
+            for (final Member member : values.keySet()) {
+                final Object was = Reflection.get(member, row);
+                final Object now = Reflection.get(member, entity);
+
+                base.put(member, was);
+                if (!Objects.equals(was, now)) {
+                    changes.put(member, now);
+                }
+            }
+
+            type = entityClass;
+        }
+
+        private boolean canReapply() {
+            return changes != null;
+        }
+
+        /**
+         * Make the caller's changes to the row as it is now
+         *
+         * @throws OptimisticLockException if the other transaction
+         * changed an attribute the caller changed too
+         */
+        private Object reapply(final EntityManager em) {
+            final Object row = em.find(type, key, Timeouts.properties());
+
+            if (row == null) {
+                throw new OptimisticLockException(method.getName() + " cannot reapply its changes, the row was removed", null, entity);
+            }
+
+            for (final Map.Entry<Member, Object> change : changes.entrySet()) {
+                final Object current = Reflection.get(change.getKey(), row);
+
+                if (!Objects.equals(current, base.get(change.getKey())) && !Objects.equals(current, change.getValue())) {
+                    changes = null;
+                    throw new OptimisticLockException(method.getName() + " cannot reapply its changes, another transaction changed "
+                            + change.getKey().getName() + " too", null, entity);
+                }
+            }
+
+            for (final Map.Entry<Member, Object> change : changes.entrySet()) {
+                Reflection.set(change.getKey(), row, change.getValue());
+            }
+
+            em.flush();
+
+            // the caller's copy takes the version written, as a merge would leave the managed copy
+            Reflection.set(version.getJavaMember(), entity, version(row));
+
+            return (Void.TYPE.equals(method.getReturnType())) ? null : row;
+        }
+
+        private Object version(final Object object) {
+            return Reflection.get(version.getJavaMember(), object);
+        }
+    }
+}
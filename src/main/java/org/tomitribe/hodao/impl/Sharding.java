@@ -0,0 +1,628 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Count;
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.Exists;
+import org.tomitribe.hodao.Find;
+import org.tomitribe.hodao.MaxResults;
+import org.tomitribe.hodao.Merge;
+import org.tomitribe.hodao.NativeQuery;
+import org.tomitribe.hodao.Offset;
+import org.tomitribe.hodao.Optional;
+import org.tomitribe.hodao.Patch;
+import org.tomitribe.hodao.Persist;
+import org.tomitribe.hodao.Remove;
+import org.tomitribe.hodao.ShardKey;
+import org.tomitribe.hodao.ShardResolver;
+import org.tomitribe.hodao.Upsert;
+import org.tomitribe.hodao.ValidationException;
+import org.tomitribe.hodao.util.Jpql;
+import org.tomitribe.hodao.util.Reflection;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.NonUniqueResultException;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a call on the shard of its shard key, or, for calls without
+ * one, on every shard.  Outside a transaction, reads then run
+ * concurrently, each on an EntityManager of its own.  In a transaction
+ * they run on the shards' EntityManagers in turn, so they see the
+ * transaction's own writes as the updates do, which run on every shard
+ * in turn in the caller's transaction.  The results are merged: lists
+ * are joined and sorted again by the query's order by clause, counts
+ * are added up, existence checks combined, and single results taken
+ * from the one shard that has one.
+ * <p/>
+ * Only results that can be merged are gathered: a select without a
+ * shard key must return a list, an array, a count, an existence check
+ * or a single entity or projection, which is validated once per
+ * method, or up front by PersistenceHandler.compile.  Likewise a
+ * @Persist of an entity sharded by a generated id is refused, as the
+ * id is not known until the entity is on its shard.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Sharding {
+
+    private static final List<Class<? extends Annotation>> ENTITY_WRITES = Arrays.<Class<? extends Annotation>>asList(
+            Merge.class, Patch.class, Persist.class, Remove.class, Upsert.class);
+
+    private static final Map<Method, Integer> PARAMETERS = new ConcurrentHashMap<Method, Integer>();
+
+    private static final Map<Class<?>, Member> KEYS = new ConcurrentHashMap<Class<?>, Member>();
+
+    private static final Map<Method, Boolean> VALIDATED = new ConcurrentHashMap<Method, Boolean>();
+
+    private static final Map<String, Comparator<Object>> ORDERS = new ConcurrentHashMap<String, Comparator<Object>>();
+
+    /**
+     * Stands for results that need no sorting
+     */
+    private static final Comparator<Object> UNORDERED = new Comparator<Object>() {
+        @Override
+        public int compare(final Object a, final Object b) {
+            return 0;
+        }
+    };
+
+    private Sharding() {
+    }
+
+    public static Object invoke(final ShardResolver resolver, final Method method, final Object[] args) throws Throwable {
+        final List<EntityManager> shards = resolver.shards();
+        final EntityManager em = shards.get(0);
+
+        validate(em, method);
+
+        final int parameter = keyParameter(method);
+        if (parameter >= 0) {
+            if (args[parameter] == null) {
+                throw new ValidationException(method.getName() + " has a null @ShardKey");
+            }
+
+            return PersistenceHandler.execute(resolver.shard(args[parameter]), method, args);
+        }
+
+        if (isEntityWrite(em, method)) {
+            return write(resolver, em, method, args);
+        }
+
+        if (method.isAnnotationPresent(Find.class) && args[0] != null && isShardedById(em, method.getReturnType())) {
+            return PersistenceHandler.execute(resolver.shard(args[0]), method, args);
+        }
+
+        if (Operations.isWrite(em, method)) {
+            for (final Class<? extends Annotation> write : ENTITY_WRITES) {
+                if (method.isAnnotationPresent(write)) {
+                    throw new ValidationException(method.getName() + " needs a @ShardKey parameter to tell which shard to write to");
+                }
+            }
+
+            return updateAll(shards, method, args);
+        }
+
+        return gather(shards, method, args);
+    }
+
+    /**
+     * Check the method can be called on shards: a @Persist needs a
+     * shard key other than a generated id, and a select without a
+     * @ShardKey parameter must return results that can be merged
+     *
+     * @param em any shard
+     * @param method
+     * @throws ValidationException if it cannot
+     */
+    public static void validate(final EntityManager em, final Method method) {
+        if (VALIDATED.containsKey(method)) {
+            return;
+        }
+
+        if (keyParameter(method) < 0) {
+            if (method.isAnnotationPresent(Persist.class)) {
+                validatePersist(em, method);
+            } else if (!Operations.isWrite(em, method)) {
+                validateGather(em, method);
+            }
+        }
+
+        VALIDATED.put(method, Boolean.TRUE);
+    }
+
+    private static void validatePersist(final EntityManager em, final Method method) {
+        final Class<?>[] types = method.getParameterTypes();
+        if (types.length != 1) {
+            return;
+        }
+
+        final Class<?> type = (Collection.class.isAssignableFrom(types[0])) ? Reflection.typeArgument(method.getGenericParameterTypes()[0]) : types[0];
+        final Class<?> entityClass = Queries.managedClass(em, type);
+        if (entityClass == null) {
+            return;
+        }
+
+        final Member member = keyMember(em, entityClass);
+
+        if (member instanceof AnnotatedElement && ((AnnotatedElement) member).isAnnotationPresent(GeneratedValue.class)) {
+            throw new ValidationException(method.getName() + " cannot tell which shard a new " + entityClass.getSimpleName()
+                    + " belongs to, its id is generated, mark an attribute @ShardKey");
+        }
+    }
+
+    private static void validateGather(final EntityManager em, final Method method) {
+        final Class<?> returnType = method.getReturnType();
+
+        if (Operations.isSingleUse(method)) {
+            throw new ValidationException(method.getName() + " cannot gather results from every shard, give it a @ShardKey parameter");
+        }
+
+        if (Collection.class.isAssignableFrom(returnType) || returnType.isArray() || isCount(em, method) || isExists(em, method)) {
+            return;
+        }
+
+        // a single result is taken from the one shard that has it
+        if (Queries.isManaged(em, returnType) || Projection.isProjection(em, returnType)) {
+            return;
+        }
+
+        throw new ValidationException("Cannot merge the " + returnType.getSimpleName() + " results of " + method.getName()
+                + " from every shard, give it a @ShardKey parameter");
+    }
+
+    /**
+     * Write each entity on its shard, keeping the results in the order
+     * of the arguments
+     */
+    private static Object write(final ShardResolver resolver, final EntityManager em, final Method method, final Object[] args) throws Throwable {
+        final Object arg = args[0];
+
+        if (arg == null) {
+            throw new ValidationException(method.getParameterTypes()[0].getSimpleName() + " object is null");
+        }
+
+        if (!(arg instanceof Collection)) {
+            return PersistenceHandler.execute(resolver.shard(key(em, arg)), method, args);
+        }
+
+        final List<?> entities = new ArrayList<Object>((Collection<?>) arg);
+        final Map<EntityManager, List<Integer>> positions = new IdentityHashMap<EntityManager, List<Integer>>();
+
+        for (int i = 0; i < entities.size(); i++) {
+            if (entities.get(i) == null) {
+                throw new ValidationException("Collection contains a null object");
+            }
+
+            final EntityManager shard = resolver.shard(key(em, entities.get(i)));
+
+            List<Integer> indexes = positions.get(shard);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                positions.put(shard, indexes);
+            }
+            indexes.add(i);
+        }
+
+        final Object[] results = new Object[entities.size()];
+
+        for (final Map.Entry<EntityManager, List<Integer>> entry : positions.entrySet()) {
+            final List<Object> share = new ArrayList<Object>(entry.getValue().size());
+            for (final Integer index : entry.getValue()) {
+                share.add(entities.get(index));
+            }
+
+            final Object[] shareArgs = args.clone();
+            shareArgs[0] = share;
+
+            final Object result = PersistenceHandler.execute(entry.getKey(), method, shareArgs);
+
+            if (result instanceof List) {
+                for (int i = 0; i < share.size(); i++) {
+                    results[entry.getValue().get(i)] = ((List<?>) result).get(i);
+                }
+            }
+        }
+
+        return (method.getReturnType().isAssignableFrom(ArrayList.class)) ? new ArrayList<Object>(Arrays.asList(results)) : null;
+    }
+
+    private static Object updateAll(final List<EntityManager> shards, final Method method, final Object[] args) throws Throwable {
+        int rows = 0;
+
+        for (final EntityManager shard : shards) {
+            final Object result = PersistenceHandler.execute(shard, method, args);
+
+            if (result instanceof Number) {
+                rows += ((Number) result).intValue();
+            }
+        }
+
+        return (Void.TYPE.equals(method.getReturnType())) ? null : Primitives.convert(rows, method.getReturnType());
+    }
+
+    private static Object gather(final List<EntityManager> shards, final Method method, final Object[] args) throws Exception {
+        final Class<?> returnType = method.getReturnType();
+        final int offsetIndex = index(method, Offset.class);
+        final int maxIndex = index(method, MaxResults.class);
+        final boolean paged = offsetIndex >= 0 && maxIndex >= 0 && args[offsetIndex] != null && args[maxIndex] != null;
+
+        Object[] shardArgs = args;
+        int offset = 0;
+        int max = 0;
+
+        if (paged) {
+            // the page is cut from the first offset + max results of every shard
+            offset = ((Number) args[offsetIndex]).intValue();
+            max = ((Number) args[maxIndex]).intValue();
+
+            shardArgs = args.clone();
+            shardArgs[offsetIndex] = 0;
+            shardArgs[maxIndex] = end(offset, max, Integer.MAX_VALUE);
+        }
+
+        final List<Object> results = scatter(shards, method, shardArgs);
+
+        if (Collection.class.isAssignableFrom(returnType)) {
+            final List<Object> merged = new ArrayList<Object>();
+            for (final Object result : results) {
+                merged.addAll((Collection<?>) result);
+            }
+
+            final Comparator<Object> order = order(shards.get(0), method, args);
+            if (order != UNORDERED) {
+                Collections.sort(merged, order);
+            }
+
+            if (paged) {
+                return new ArrayList<Object>(merged.subList(Math.min(offset, merged.size()), end(offset, max, merged.size())));
+            }
+
+            return merged;
+        }
+
+        if (returnType.isArray()) {
+            return join(returnType, results);
+        }
+
+        if (isCount(shards.get(0), method)) {
+            long count = 0;
+            for (final Object result : results) {
+                count += ((Number) result).longValue();
+            }
+
+            return Primitives.convert(count, returnType);
+        }
+
+        if (isExists(shards.get(0), method)) {
+            return results.contains(Boolean.TRUE);
+        }
+
+        Object found = null;
+        for (final Object result : results) {
+            if (result != null) {
+                if (found != null) {
+                    throw new NonUniqueResultException(method.getName() + " found results on more than one shard");
+                }
+                found = result;
+            }
+        }
+
+        if (found == null && !method.isAnnotationPresent(Optional.class) && !method.isAnnotationPresent(Find.class)) {
+            throw new NoResultException(method.getName() + " found no result on any shard");
+        }
+
+        return (found == null) ? Primitives.convert(null, returnType) : found;
+    }
+
+    /**
+     * The end of the page, no further than the limit, where offset + max may not fit in an int
+     */
+    private static int end(final int offset, final int max, final int limit) {
+        return (int) Math.min((long) offset + max, limit);
+    }
+
+    private static List<Object> scatter(final List<EntityManager> shards, final Method method, final Object[] args) throws Exception {
+        for (final EntityManager shard : shards) {
+            if (Transactions.isActive(shard)) {
+                return scatterInTransaction(shards, method, args);
+            }
+        }
+
+        final ExecutorService executor = Concurrency.executor();
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(shards.size());
+        final Deadline deadline = Deadline.current();
+
+        try {
+            for (final EntityManager shard : shards) {
+                final EntityManagerFactory emf = shard.getEntityManagerFactory();
+
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        final EntityManager own = emf.createEntityManager();
+                        final Deadline scope = (deadline != null) ? Deadline.open(deadline) : null;
+                        try {
+                            final Object result = PersistenceHandler.call(own, method, args);
+
+                            // copied, as lazily read result lists die with their EntityManager
+                            return (result instanceof Collection) ? new ArrayList<Object>((Collection<?>) result) : result;
+
+                        } catch (final NoResultException e) {
+
+                            // another shard may have it
+                            return null;
+
+                        } finally {
+                            if (scope != null) {
+                                scope.close();
+                            }
+                            own.close();
+                        }
+                    }
+                }));
+            }
+
+            final List<Object> results = new ArrayList<Object>(futures.size());
+            for (final Future<Object> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (final ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+
+            return results;
+
+        } finally {
+            for (final Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Read every shard in turn on its own EntityManager, which takes
+     * part in the caller's transaction
+     */
+    private static List<Object> scatterInTransaction(final List<EntityManager> shards, final Method method, final Object[] args) throws Exception {
+        final List<Object> results = new ArrayList<Object>(shards.size());
+
+        for (final EntityManager shard : shards) {
+            try {
+                final Object result = PersistenceHandler.call(shard, method, args);
+                results.add((result instanceof Collection) ? new ArrayList<Object>((Collection<?>) result) : result);
+            } catch (final NoResultException e) {
+                // another shard may have it
+                results.add(null);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * How to sort the joined results, the order by clause of the query
+     * read back from the selected entities
+     */
+    private static Comparator<Object> order(final EntityManager em, final Method method, final Object[] args) {
+        // SQL is not parsed, the results are joined in shard order
+        if (method.isAnnotationPresent(NativeQuery.class)) {
+            return UNORDERED;
+        }
+
+        String jpql = Queries.jpql(em, method);
+
+        final Ordering ordering = Ordering.of(method);
+        if (ordering != null) {
+            jpql = ordering.jpql(jpql, args);
+        }
+
+        final List<String> items = Jpql.orderByItems(jpql);
+        if (items.isEmpty()) {
+            return UNORDERED;
+        }
+
+        final String variable = Jpql.fromVariable(jpql);
+        if (variable == null || !variable.equals(Jpql.selectedVariable(jpql)) || !Queries.isManaged(em, Reflection.elementType(method))) {
+            throw new ValidationException("Cannot merge the ordered results of " + method.getName() + " from every shard, select the entity or give it a @ShardKey parameter");
+        }
+
+        Comparator<Object> order = ORDERS.get(jpql);
+
+        if (order == null) {
+            order = PartitionedQuery.comparator(Queries.entity(em, Jpql.fromEntity(jpql)), variable, items, jpql);
+            ORDERS.put(jpql, order);
+        }
+
+        return order;
+    }
+
+    private static Object join(final Class<?> arrayType, final List<Object> arrays) {
+        int length = 0;
+        for (final Object array : arrays) {
+            length += Array.getLength(array);
+        }
+
+        final Object joined = Array.newInstance(arrayType.getComponentType(), length);
+
+        int position = 0;
+        for (final Object array : arrays) {
+            final int part = Array.getLength(array);
+            System.arraycopy(array, 0, joined, position, part);
+            position += part;
+        }
+
+        return joined;
+    }
+
+    private static boolean isCount(final EntityManager em, final Method method) {
+        if (method.isAnnotationPresent(Count.class)) {
+            return true;
+        }
+
+        final DerivedQuery derivedQuery = (PersistenceHandler.isOperation(method)) ? null : DerivedQuery.of(em, method);
+        return derivedQuery != null && derivedQuery.getKind() == DerivedQuery.Kind.COUNT;
+    }
+
+    private static boolean isExists(final EntityManager em, final Method method) {
+        if (method.isAnnotationPresent(Exists.class)) {
+            return true;
+        }
+
+        final DerivedQuery derivedQuery = (PersistenceHandler.isOperation(method)) ? null : DerivedQuery.of(em, method);
+        return derivedQuery != null && derivedQuery.getKind() == DerivedQuery.Kind.EXISTS;
+    }
+
+    private static boolean isEntityWrite(final EntityManager em, final Method method) {
+        final Class<?>[] types = method.getParameterTypes();
+
+        if (types.length != 1 || !(Collection.class.isAssignableFrom(types[0]) || Queries.isManaged(em, types[0]))) {
+            return false;
+        }
+
+        for (final Class<? extends Annotation> write : ENTITY_WRITES) {
+            if (method.isAnnotationPresent(write)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Is the shard of the entity given by its id, so a @Find can go
+     * straight to it?
+     */
+    private static boolean isShardedById(final EntityManager em, final Class<?> type) {
+        final Class<?> entityClass = Queries.managedClass(em, type);
+        if (entityClass == null) {
+            return false;
+        }
+
+        final SingularAttribute<?, ?> id = Queries.idAttribute(em.getMetamodel().entity(entityClass));
+        return id != null && id.getName().equals(propertyName(keyMember(em, entityClass)));
+    }
+
+    /**
+     * The shard key of an entity, the value of its @ShardKey attribute
+     * or of its id
+     */
+    private static Object key(final EntityManager em, final Object entity) {
+        final Object key = Reflection.get(keyMember(em, entity.getClass()), entity);
+
+        if (key == null) {
+            throw new ValidationException("Cannot tell which shard a " + Queries.managedClass(em, entity.getClass()).getSimpleName()
+                    + " belongs to, its shard key is null");
+        }
+
+        return key;
+    }
+
+    private static Member keyMember(final EntityManager em, final Class<?> type) {
+        Member member = KEYS.get(type);
+
+        if (member == null) {
+            member = findKeyMember(em, type);
+            KEYS.put(type, member);
+        }
+
+        return member;
+    }
+
+    private static Member findKeyMember(final EntityManager em, final Class<?> type) {
+        for (Class<?> c = type; c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+            for (final Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(ShardKey.class)) {
+                    return field;
+                }
+            }
+
+            for (final Method getter : c.getDeclaredMethods()) {
+                if (getter.isAnnotationPresent(ShardKey.class) && getter.getParameterTypes().length == 0) {
+                    return getter;
+                }
+            }
+        }
+
+        final Class<?> entityClass = Queries.managedClass(em, type);
+        final SingularAttribute<?, ?> id = (entityClass == null) ? null : Queries.idAttribute(em.getMetamodel().entity(entityClass));
+
+        if (id == null) {
+            throw new ValidationException("Cannot tell which shard a " + type.getSimpleName() + " belongs to, mark an attribute @ShardKey");
+        }
+
+        return id.getJavaMember();
+    }
+
+    private static String propertyName(final Member member) {
+        if (member instanceof Field) {
+            return member.getName();
+        }
+
+        final String name = member.getName().replaceFirst("^(get|is)", "");
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static int keyParameter(final Method method) {
+        Integer index = PARAMETERS.get(method);
+
+        if (index == null) {
+            index = index(method, ShardKey.class);
+            PARAMETERS.put(method, index);
+        }
+
+        return index;
+    }
+
+    private static int index(final Method method, final Class<? extends Annotation> annotation) {
+        final Annotation[][] annotations = method.getParameterAnnotations();
+
+        for (int i = 0; i < annotations.length; i++) {
+            for (final Annotation candidate : annotations[i]) {
+                if (annotation.isInstance(candidate)) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import org.tomitribe.hodao.Deadline;
+import org.tomitribe.hodao.Timeout;
+import org.tomitribe.hodao.ValidationException;
+
+import jakarta.persistence.Query;
+import jakarta.persistence.QueryTimeoutException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the current Deadline into query timeouts.  Each query is given
+ * the milliseconds left when it is about to run, and nothing runs once
+ * they are all spent.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Timeouts {
+
+    public static final String HINT = "jakarta.persistence.query.timeout";
+
+    private Timeouts() {
+    }
+
+    /**
+     * Open the Deadline of the method's @Timeout, or return null if it
+     * has none
+     *
+     * @param method
+     * @return
+     * @throws ValidationException if the timeout is less than 1ms
+     */
+    public static Deadline open(final Method method) {
+        final Timeout timeout = method.getAnnotation(Timeout.class);
+
+        if (timeout == null) {
+            return null;
+        }
+
+        if (timeout.value() < 1) {
+            throw new ValidationException(method.getName() + " needs a @Timeout of at least 1ms");
+        }
+
+        return Deadline.open(timeout.value());
+    }
+
+    /**
+     * Fail if the current deadline has passed
+     *
+     * @param method
+     * @throws QueryTimeoutException if it has
+     */
+    public static void check(final Method method) {
+        final Deadline deadline = Deadline.current();
+
+        if (deadline != null && deadline.isExpired()) {
+            throw new QueryTimeoutException("The deadline passed before " + method.getName() + " ran");
+        }
+    }
+
+    /**
+     * Give the query the time left on the current deadline, if any
+     *
+     * @param query
+     * @throws QueryTimeoutException if there is none left
+     */
+    public static void apply(final Query query) {
+        apply(query, Deadline.current());
+    }
+
+    /**
+     * Give the query the time left on the deadline, when not null
+     *
+     * @param query
+     * @param deadline
+     * @throws QueryTimeoutException if there is none left
+     */
+    public static void apply(final Query query, final Deadline deadline) {
+        if (deadline != null) {
+            query.setHint(HINT, millis(deadline));
+        }
+    }
+
+    /**
+     * The timeout property for EntityManager.find, empty if there is
+     * no current deadline
+     *
+     * @return
+     * @throws QueryTimeoutException if there is no time left
+     */
+    public static Map<String, Object> properties() {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        final Deadline deadline = Deadline.current();
+
+        if (deadline != null) {
+            properties.put(HINT, millis(deadline));
+        }
+
+        return properties;
+    }
+
+    private static Integer millis(final Deadline deadline) {
+        final long remaining = deadline.remaining();
+
+        // a timeout of 0 would mean none at all
+        if (remaining == 0) {
+            throw new QueryTimeoutException("The deadline passed before the query ran");
+        }
+
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+}
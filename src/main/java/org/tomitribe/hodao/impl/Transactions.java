@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.impl;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityTransaction;
+import jakarta.transaction.Transaction;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs work in a transaction of its own.  In a container the JTA
+ * TransactionManager is used, suspending the caller's transaction,
+ * elsewhere the EntityManager must be resource local.
+ * <p/>
+ * Jakarta EE does not standardize where the TransactionManager is
+ * bound, so the names used by the common servers are tried in turn.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Transactions {
+
+    private static final String REGISTRY = "java:comp/TransactionSynchronizationRegistry";
+
+    private static final String[] TRANSACTION_MANAGERS = {
+        "java:comp/TransactionManager",
+        "java:/TransactionManager",
+        "java:appserver/TransactionManager",
+        "java:pm/TransactionManager"
+    };
+
+    /**
+     * The registry last looked up, see registry()
+     */
+    private static volatile TransactionSynchronizationRegistry registry;
+
+    private Transactions() {
+    }
+
+    /**
+     * Call the work in a new transaction, committing it if the work
+     * returns and rolling it back if it throws
+     *
+     * @param em
+     * @param work
+     * @param <T>
+     * @return what the work returned
+     * @throws Exception what the work or the commit threw
+     */
+    public static <T> T inNewTransaction(final EntityManager em, final Callable<T> work) throws Exception {
+        final TransactionManager transactionManager = transactionManager();
+
+        if (transactionManager == null) {
+            return inResourceLocalTransaction(em, work);
+        }
+
+        final Transaction suspended = transactionManager.suspend();
+        try {
+            transactionManager.begin();
+
+            final T result;
+            try {
+                result = work.call();
+            } catch (final Throwable t) {
+                transactionManager.rollback();
+                throw t;
+            }
+
+            transactionManager.commit();
+
+            return result;
+        } finally {
+            if (suspended != null) {
+                transactionManager.resume(suspended);
+            }
+        }
+    }
+
+    private static <T> T inResourceLocalTransaction(final EntityManager em, final Callable<T> work) throws Exception {
+        final EntityTransaction transaction = em.getTransaction();
+
+        if (transaction.isActive()) {
+            throw new IllegalStateException("Cannot start a new transaction while a resource local one is active");
+        }
+
+        transaction.begin();
+
+        final T result;
+        try {
+            result = work.call();
+        } catch (final Throwable t) {
+            transaction.rollback();
+            throw t;
+        }
+
+        transaction.commit();
+
+        return result;
+    }
+
+    /**
+     * The TransactionSynchronizationRegistry, or null outside a container
+     * <p/>
+     * The registry is looked up once and kept.  It is only looked up
+     * again when the one kept sees no transaction, as a registry left
+     * over from a restarted container would, so calls made in a
+     * transaction never go to JNDI.
+     *
+     * @return
+     */
+    public static TransactionSynchronizationRegistry registry() {
+        final TransactionSynchronizationRegistry kept = registry;
+
+        if (kept != null && kept.getTransactionKey() != null) {
+            return kept;
+        }
+
+        final TransactionSynchronizationRegistry found = lookupRegistry();
+
+        if (found != null) {
+            registry = found;
+        }
+
+        return found;
+    }
+
+    /**
+     * The TransactionSynchronizationRegistry, or null if there is no
+     * transaction on this thread
+     *
+     * @return
+     */
+    public static TransactionSynchronizationRegistry inTransaction() {
+        final TransactionSynchronizationRegistry registry = registry();
+
+        return (registry != null && registry.getTransactionKey() != null) ? registry : null;
+    }
+
+    /**
+     * Is there a transaction the EntityManager works in, JTA or
+     * resource local?
+     *
+     * @param em
+     * @return
+     */
+    public static boolean isActive(final EntityManager em) {
+        return inTransaction() != null || em.isJoinedToTransaction();
+    }
+
+    private static TransactionSynchronizationRegistry lookupRegistry() {
+        try {
+            return (TransactionSynchronizationRegistry) new InitialContext().lookup(REGISTRY);
+        } catch (final NamingException e) {
+            return null;
+        }
+    }
+
+    private static TransactionManager transactionManager() {
+        final InitialContext context;
+        try {
+            context = new InitialContext();
+        } catch (final NamingException e) {
+            return null;
+        }
+
+        for (final String name : TRANSACTION_MANAGERS) {
+            try {
+                final Object object = context.lookup(name);
+                if (object instanceof TransactionManager) {
+                    return (TransactionManager) object;
+                }
+            } catch (final NamingException e) {
+                // not bound under this name, try the next one
+            }
+        }
+
+        return null;
+    }
+}
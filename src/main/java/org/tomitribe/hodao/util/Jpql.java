@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.tomitribe.hodao.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough JPQL awareness to rewrite the clauses of simple
+ * queries.  Keywords inside parenthesis or string literals are
+ * ignored, everything else is left to the JPA provider to parse.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Jpql {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+    private static final Pattern PATH = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)+");
+    private static final Pattern RANGE = Pattern.compile("(?i)\\s*([A-Za-z_$][\\w$.]*)\\s+(?:as\\s+)?([A-Za-z_$][\\w$]*)");
+    private static final Pattern BULK = Pattern.compile(
+            "(?is)\\s*(?:update|delete\\s+from)\\s+([A-Za-z_$][\\w$.]*)(?:\\s+(?:as\\s+)?(?!(?:set|where)\\b)([A-Za-z_$][\\w$]*))?");
+    private static final Pattern ALIASED = Pattern.compile("(?is)(.*\\S)\\s+as\\s+([A-Za-z_$][\\w$]*)");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)(?<![\\w$.])(not\\s+)?in\\s*(?:\\(\\s*[:?]([\\w$]+)\\s*\\)|[:?]([\\w$]+))");
+
+    private Jpql() {
+    }
+
+    /**
+     * The index of the first top-level occurrence of the keyword
+     * at or after the specified position, or -1 if there is none.
+     * Keywords match case-insensitively and on word boundaries.
+     *
+     * @param jpql
+     * @param keyword a single word such as "from" or "where"
+     * @param start
+     * @return
+     */
+    public static int indexOf(final String jpql, final String keyword, final int start) {
+        int depth = 0;
+        boolean quoted = false;
+
+        for (int i = start; i < jpql.length(); i++) {
+            final char c = jpql.charAt(i);
+
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (quoted) {
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && jpql.regionMatches(true, i, keyword, 0, keyword.length())
+                    && isBoundary(jpql, i - 1) && isBoundary(jpql, i + keyword.length())) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * The contents of the select clause, excluding the select keyword
+     * and any distinct modifier, or null if this is not a select query.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String selectClause(final String jpql) {
+        final int select = indexOf(jpql, "select", 0);
+        final int from = indexOf(jpql, "from", 0);
+
+        if (select < 0 || from < select || jpql.substring(0, select).trim().length() > 0) {
+            return null;
+        }
+
+        final String clause = jpql.substring(select + "select".length(), from).trim();
+
+        if (indexOf(clause, "distinct", 0) == 0) {
+            return clause.substring("distinct".length()).trim();
+        }
+
+        return clause;
+    }
+
+    /**
+     * Replace the contents of the select clause, preserving any
+     * distinct modifier and everything from the from clause onward.
+     *
+     * @param jpql
+     * @param items the new select list
+     * @return
+     */
+    public static String replaceSelectClause(final String jpql, final String items) {
+        final int select = indexOf(jpql, "select", 0);
+        final int from = indexOf(jpql, "from", 0);
+        final String clause = jpql.substring(select + "select".length(), from).trim();
+        final String distinct = (indexOf(clause, "distinct", 0) == 0) ? "distinct " : "";
+
+        return "select " + distinct + items + " " + jpql.substring(from);
+    }
+
+    /**
+     * If the query selects a single identification variable, as in
+     * "select b from Book b", the variable name.  Otherwise null.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String selectedVariable(final String jpql) {
+        final String clause = selectClause(jpql);
+
+        if (clause != null && IDENTIFIER.matcher(clause).matches()) {
+            return clause;
+        }
+
+        return null;
+    }
+
+    /**
+     * The top-level comma separated items of the select clause
+     *
+     * @param jpql
+     * @return
+     */
+    public static List<String> selectItems(final String jpql) {
+        final String clause = selectClause(jpql);
+
+        if (clause == null) {
+            return new ArrayList<String>();
+        }
+
+        return split(clause);
+    }
+
+    /**
+     * The top-level comma separated items of the order by clause,
+     * such as "b.title desc", or an empty list if there is none
+     *
+     * @param jpql
+     * @return
+     */
+    public static List<String> orderByItems(final String jpql) {
+        final int order = indexOf(jpql, "order", 0);
+
+        if (order < 0) {
+            return new ArrayList<String>();
+        }
+
+        final int by = indexOf(jpql, "by", order);
+        return split(jpql.substring(by + "by".length()).trim());
+    }
+
+    /**
+     * The name a select item is known by.  That is the result variable
+     * for "b.title as name", the last attribute for "b.author.name",
+     * or null for anything else.
+     *
+     * @param item
+     * @return
+     */
+    public static String itemName(final String item) {
+        final Matcher aliased = ALIASED.matcher(item.trim());
+        if (aliased.matches()) {
+            return aliased.group(2);
+        }
+
+        if (PATH.matcher(item.trim()).matches()) {
+            return item.substring(item.lastIndexOf('.') + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * The expression of a select item, without any result variable,
+     * "b.title" for "b.title as name"
+     *
+     * @param item
+     * @return
+     */
+    public static String itemExpression(final String item) {
+        final Matcher aliased = ALIASED.matcher(item.trim());
+        return (aliased.matches()) ? aliased.group(1).trim() : item.trim();
+    }
+
+    /**
+     * Add conditions to the where clause, creating it if necessary.
+     * An existing condition is parenthesized so the added ones apply
+     * to all of it.  Group by, having and order by clauses are kept.
+     *
+     * @param jpql
+     * @param conditions
+     * @return
+     */
+    public static String addConditions(final String jpql, final List<String> conditions) {
+        if (conditions.isEmpty()) {
+            return jpql;
+        }
+
+        final int end = endOfWhereClause(jpql);
+        final int where = indexOf(jpql, "where", 0);
+        final StringBuilder sb = new StringBuilder();
+
+        if (where >= 0 && where < end) {
+            sb.append(jpql, 0, where).append("where (").append(jpql.substring(where + "where".length(), end).trim()).append(')');
+        } else {
+            sb.append(jpql.substring(0, end).trim()).append(" where ");
+        }
+
+        for (int i = 0; i < conditions.size(); i++) {
+            if (i > 0 || (where >= 0 && where < end)) {
+                sb.append(" and ");
+            }
+            sb.append('(').append(conditions.get(i)).append(')');
+        }
+
+        if (end < jpql.length()) {
+            sb.append(' ').append(jpql.substring(end));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * The first identification variable declared in the from clause,
+     * "b" for "select ... from Book b join b.author a", or null.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String fromVariable(final String jpql) {
+        final int from = indexOf(jpql, "from", 0);
+        if (from < 0) {
+            return null;
+        }
+
+        final Matcher matcher = RANGE.matcher(jpql.substring(from + "from".length()));
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+
+        return matcher.group(2);
+    }
+
+    /**
+     * The entity name of the first range variable declaration in the
+     * from clause, "Book" for "select ... from Book b", or null.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String fromEntity(final String jpql) {
+        final int from = indexOf(jpql, "from", 0);
+        if (from < 0) {
+            return null;
+        }
+
+        final Matcher matcher = RANGE.matcher(jpql.substring(from + "from".length()));
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+
+        return matcher.group(1);
+    }
+
+    /**
+     * The entity name of an update or delete statement, "Book" for
+     * "update Book b set ..." or "delete from Book", or null.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String bulkEntity(final String jpql) {
+        final Matcher matcher = BULK.matcher(jpql);
+        return (matcher.lookingAt()) ? matcher.group(1) : null;
+    }
+
+    /**
+     * The identification variable of an update or delete statement,
+     * or null if the statement declares none.
+     *
+     * @param jpql
+     * @return
+     */
+    public static String bulkVariable(final String jpql) {
+        final Matcher matcher = BULK.matcher(jpql);
+        return (matcher.lookingAt()) ? matcher.group(2) : null;
+    }
+
+    /**
+     * Declare an identification variable on an update or delete
+     * statement that has none, so conditions can be added to it.
+     *
+     * @param jpql
+     * @param variable
+     * @return
+     */
+    public static String declareBulkVariable(final String jpql, final String variable) {
+        final Matcher matcher = BULK.matcher(jpql);
+
+        if (!matcher.lookingAt() || matcher.group(2) != null) {
+            return jpql;
+        }
+
+        return jpql.substring(0, matcher.end(1)) + " " + variable + jpql.substring(matcher.end(1));
+    }
+
+    /**
+     * The names, or positions, of the parameters that make up a whole
+     * IN list, as in "b.id in :ids" or "b.id not in (?1)"
+     *
+     * @param jpql
+     * @return
+     */
+    public static Set<String> inParameters(final String jpql) {
+        return inParameters(jpql, false);
+    }
+
+    /**
+     * The names, or positions, of the parameters that make up a whole
+     * NOT IN list, as in "b.id not in :ids"
+     *
+     * @param jpql
+     * @return
+     */
+    public static Set<String> notInParameters(final String jpql) {
+        return inParameters(jpql, true);
+    }
+
+    private static Set<String> inParameters(final String jpql, final boolean negatedOnly) {
+        final Set<String> parameters = new HashSet<String>();
+        final Matcher matcher = IN_LIST.matcher(jpql);
+
+        while (matcher.find()) {
+            if (!negatedOnly || matcher.group(1) != null) {
+                parameters.add((matcher.group(2) != null) ? matcher.group(2) : matcher.group(3));
+            }
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Remove the order by clause, if any
+     *
+     * @param jpql
+     * @return
+     */
+    public static String removeOrderBy(final String jpql) {
+        final int order = indexOf(jpql, "order", 0);
+        return (order < 0) ? jpql : jpql.substring(0, order).trim();
+    }
+
+    /**
+     * Replace the order by clause, adding one if there is none
+     *
+     * @param jpql
+     * @param items the new order by list
+     * @return
+     */
+    public static String replaceOrderBy(final String jpql, final String items) {
+        final int order = indexOf(jpql, "order", 0);
+        final String head = (order < 0) ? jpql : jpql.substring(0, order);
+
+        return head.trim() + " order by " + items;
+    }
+
+    /**
+     * The index where the group by, having or order by clause begins,
+     * or the length of the query if it has none of these.
+     *
+     * @param jpql
+     * @return
+     */
+    public static int endOfWhereClause(final String jpql) {
+        int end = jpql.length();
+
+        for (final String keyword : new String[]{"group", "having", "order"}) {
+            final int index = indexOf(jpql, keyword, 0);
+            if (index >= 0 && index < end) {
+                end = index;
+            }
+        }
+
+        return end;
+    }
+
+    private static List<String> split(final String clause) {
+        final List<String> items = new ArrayList<String>();
+
+        int depth = 0;
+        int begin = 0;
+        boolean quoted = false;
+
+        for (int i = 0; i < clause.length(); i++) {
+            final char c = clause.charAt(i);
+
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                items.add(clause.substring(begin, i).trim());
+                begin = i + 1;
+            }
+        }
+
+        items.add(clause.substring(begin).trim());
+
+        return items;
+    }
+
+    private static boolean isBoundary(final String jpql, final int index) {
+        if (index < 0 || index >= jpql.length()) {
+            return true;
+        }
+
+        final char c = jpql.charAt(index);
+        return !Character.isJavaIdentifierPart(c) && c != '.' && c != ':';
+    }
+}
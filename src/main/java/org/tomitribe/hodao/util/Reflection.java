@@ -16,10 +16,19 @@
  */
 package org.tomitribe.hodao.util;
 
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 /**
  * @version $Revision$ $Date$
@@ -88,4 +97,104 @@ public class Reflection {
             }
         };
     }
+
+    /**
+     * The type of the individual results a method returns.  For
+     * a method returning List&lt;Book&gt;, Stream&lt;Book&gt; or
+     * Flow.Publisher&lt;Book&gt; this is Book, for a method returning
+     * Book this is also Book.  Raw collections yield Object.
+     *
+     * @param method
+     * @return
+     */
+    public static Class<?> elementType(final Method method) {
+        final Class<?> returnType = method.getReturnType();
+
+        if (!Collection.class.isAssignableFrom(returnType) && !Stream.class.equals(returnType) && !Flow.Publisher.class.equals(returnType)) {
+            return returnType;
+        }
+
+        return typeArgument(method.getGenericReturnType());
+    }
+
+    /**
+     * The first type argument of a parameterized type, or Object
+     * if the type is raw or the argument is not a plain class.
+     *
+     * @param type
+     * @return
+     */
+    public static Class<?> typeArgument(final Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return Object.class;
+        }
+
+        final Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+
+        if (argument instanceof Class) {
+            return (Class<?>) argument;
+        }
+
+        if (argument instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) argument).getRawType();
+        }
+
+        return Object.class;
+    }
+
+    /**
+     * Read a field, or call a getter, as the metamodel reports
+     * attributes via Attribute.getJavaMember()
+     *
+     * @param member a Field or a no-arg Method
+     * @param target
+     * @return
+     */
+    public static Object get(final Member member, final Object target) {
+        try {
+            if (member instanceof AccessibleObject) {
+                ((AccessibleObject) member).setAccessible(true);
+            }
+
+            if (member instanceof Field) {
+                return ((Field) member).get(target);
+            }
+
+            return ((Method) member).invoke(target);
+        } catch (final InvocationTargetException e) {
+            throw new IllegalStateException("Cannot read " + member.getName(), e.getCause());
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read " + member.getName(), e);
+        }
+    }
+
+    /**
+     * Write a field, or call the setter matching a getter, as the
+     * metamodel reports attributes via Attribute.getJavaMember()
+     *
+     * @param member a Field or a getter
+     * @param target
+     * @param value
+     */
+    public static void set(final Member member, final Object target, final Object value) {
+        try {
+            if (member instanceof Field) {
+                ((Field) member).setAccessible(true);
+                ((Field) member).set(target, value);
+                return;
+            }
+
+            final Method getter = (Method) member;
+            final String name = getter.getName().replaceFirst("^(get|is)", "");
+            final Method setter = getter.getDeclaringClass().getDeclaredMethod("set" + name, getter.getReturnType());
+            setter.setAccessible(true);
+            setter.invoke(target, value);
+        } catch (final NoSuchMethodException e) {
+            throw new IllegalStateException("Cannot write " + member.getName() + ", it has no setter", e);
+        } catch (final InvocationTargetException e) {
+            throw new IllegalStateException("Cannot write " + member.getName(), e.getCause());
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException("Cannot write " + member.getName(), e);
+        }
+    }
 }
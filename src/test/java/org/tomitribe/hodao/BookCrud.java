@@ -18,17 +18,23 @@ package org.tomitribe.hodao;
 
 import org.tomitribe.hodao.impl.PersistenceHandler;
 
-import jakarta.ejb.Lock;
 import jakarta.ejb.LockType;
 import jakarta.ejb.Singleton;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 @Singleton
-@Lock(LockType.READ)
+@jakarta.ejb.Lock(LockType.READ)
 public abstract class BookCrud implements InvocationHandler {
 
     @PersistenceContext
@@ -43,6 +49,26 @@ public abstract class BookCrud implements InvocationHandler {
     @Merge
     public abstract Book update(final Book book);
 
+    @Persist
+    public abstract Shelf createShelf(final Shelf shelf);
+
+    @Find
+    public abstract Shelf findShelf(final Long id);
+
+    @Merge
+    public abstract Shelf updateShelf(final Shelf shelf);
+
+    @Patch
+    public abstract int patchShelf(final Shelf shelf);
+
+    @Merge
+    @Retry(backoff = 1)
+    public abstract Shelf updateShelfWithRetry(final Shelf shelf);
+
+    @QueryString(value = "update Shelf s set s.name = :name where s.id = :id", update = true)
+    @Retry(backoff = 1)
+    public abstract int renameShelfWithRetry(@QueryParam("id") final Long id, @QueryParam("name") final String name);
+
     @NamedQuery(Book.FIND_BY_TITLE)
     @Optional
     public abstract List<Book> findBooksByTitle(
@@ -71,9 +97,199 @@ public abstract class BookCrud implements InvocationHandler {
     @NamedQuery(update = true, value = Book.DELETE_ALL)
     public abstract int deleteAll();
 
+    @NamedQuery(update = true, value = Book.UPDATE_BOOKS_SET_YEAR)
+    @ChunkBy(size = 3)
+    public abstract int setYearOnAllBooksInChunks(@QueryParam("year") final Long year);
+
+    @QueryString(update = true, value = "delete from Book b where b.year < :year")
+    @ChunkBy(size = 4, transactional = true)
+    public abstract int deleteOlderInChunks(@QueryParam("year") final Long year);
+
+    @NamedQuery(update = true, value = Book.DELETE_ALL)
+    @ChunkBy(size = 4)
+    public abstract int deleteAllInChunks();
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    public abstract List<BookSummary> findSummariesByTitle(@QueryParam("title") final String title);
+
+    @QueryString("select b.author, b.title as title from Book b order by b.title asc")
+    public abstract List<BookTitle> findAllTitles();
+
+    @QueryString("select b from Book b where b.id = :id")
+    @Optional
+    public abstract BookTitle findTitleById(@QueryParam("id") final Long id);
+
+    @QueryString("select b.id from Book b order by b.id asc")
+    public abstract long[] findAllIds();
+
+    @QueryString("select b.id from Book b order by b.id asc")
+    public abstract LongStream streamAllIds();
+
+    @QueryString("select b.year from Book b where b.title like :title order by b.year asc")
+    public abstract int[] findYearsByTitle(@QueryParam("title") final String title);
+
+    @QueryString("select count(b) from Book b")
+    public abstract int countAll();
+
+    @NativeQuery("select * from Book where title like ?1 order by title asc")
+    public abstract List<Book> findBooksByTitleNative(@QueryParam("1") final String title);
+
+    @NativeQuery(value = "update Book set author = ?1 where title like ?2", update = true)
+    public abstract int setAuthorNative(@QueryParam("1") final String author, @QueryParam("2") final String title);
+
+    public abstract Book findByTitle(final String title);
+
+    public abstract List<Book> findByYearGreaterThanEqualAndAuthorStartingWithOrderByYearDesc(final Long year, final String author);
+
+    @EntityType(Book.class)
+    public abstract List<BookSummary> findByTitleLikeOrAuthorOrderByTitleAsc(final String title, final String author);
+
+    @EntityType(Book.class)
+    public abstract long countByYearLessThan(final Long year);
+
+    @EntityType(Book.class)
+    public abstract long countByTitleContaining(final String title);
+
+    @EntityType(Book.class)
+    public abstract boolean existsByTitle(final String title);
+
+    @QueryString("select b from Book b order by b.title asc")
+    public abstract List<Book> search(
+        @Filter("b.author = :author") final String author,
+        @Filter("b.year >= :year") final Long year,
+        @Offset final Integer offset,
+        @MaxResults final Integer max);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    public abstract List<BookSummary> searchSummaries(
+        @QueryParam("title") final String title,
+        @Filter("b.year < :year") final Long year);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    public abstract List<Book> findBooksByTitleSorted(
+        @QueryParam("title") final String title,
+        @OrderBy(allowed = {"b.title", "b.year"}) final String sort);
+
+    @QueryString("select b from Book b")
+    public abstract List<Book> searchSorted(
+        @Filter("b.author = :author") final String author,
+        @OrderBy(allowed = {"b.title", "b.year"}) final String sort);
+
+    @Count(namedQuery = Book.FIND_BY_TITLE)
+    public abstract long countBooksByTitle(@QueryParam("title") final String title);
+
+    @Count(entity = Book.class)
+    public abstract int countBooks(@Filter("x.year >= :year") final Long year);
+
+    @Count(query = "select distinct b.author from Book b order by b.author")
+    public abstract long countAuthors();
+
+    @Exists(entity = Book.class)
+    public abstract boolean bookExists(@QueryParam("id") final Long id);
+
+    @Exists(query = "select b from Book b where b.title like :title and b.year = :year")
+    public abstract boolean bookExists(@QueryParam("title") final String title, @QueryParam("year") final Long year);
+
+    @Patch(Book.class)
+    public abstract int patchBook(final Long id, @Set("title") final String title, @Set("year") final Long year);
+
+    @Patch
+    public abstract int patchBook(final Book book);
+
+    @Upsert(chunkSize = 2)
+    public abstract List<Book> upsert(final List<Book> books);
+
+    @Upsert
+    public abstract Book upsert(final Book book);
+
+    @QueryString("select b from Book b where b.id in :ids order by b.title asc")
+    public abstract List<Book> findBooksByIds(@QueryParam("ids") final Collection<Long> ids);
+
+    @QueryString(update = true, value = "update Book b set b.year = :year where b.id in :ids")
+    public abstract int setYearOnBooks(@QueryParam("ids") final Collection<Long> ids, @QueryParam("year") final Long year);
+
+    @QueryString(update = true, value = "delete from Book b where b.id not in :keep")
+    public abstract int deleteBooksExcept(@QueryParam("keep") final Collection<Long> keep);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Partitioned(by = "id", partitions = 3)
+    public abstract List<Book> findBooksByTitlePartitioned(@QueryParam("title") final String title);
+
+    @QueryString("select b from Book b where b.year >= :year order by b.id desc")
+    @Partitioned(partitions = 4)
+    public abstract Stream<Book> streamBooksPartitioned(@QueryParam("year") final Long year);
+
+    @NamedQuery(Book.FIND_ALL)
+    @Lazy(pageSize = 3)
+    public abstract List<Book> findAllLazily(@Offset final Integer offset, @MaxResults final Integer max);
+
+    @NamedQuery(Book.FIND_ALL)
+    public abstract Flow.Publisher<Book> publishAll();
+
+    @QueryString("select b from Book b order by b.title asc")
+    public abstract Flow.Publisher<BookTitle> publishTitles(@Offset final Integer offset, @MaxResults final Integer max);
+
+    @NamedQuery(Book.FIND_ALL)
+    @Export(Export.Format.CSV)
+    public abstract int exportCsv(final Writer writer);
+
+    @QueryString("select b.title, b.year as published from Book b where b.year >= :year order by b.title asc")
+    @Export(Export.Format.JSON)
+    public abstract void exportJson(@QueryParam("year") final Long year, final OutputStream out);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Coalesce
+    public abstract List<Book> findBooksByTitleCoalesced(@QueryParam("title") final String title);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Memoize
+    public abstract List<Book> findBooksByTitleMemoized(@QueryParam("title") final String title);
+
     @Find
     public abstract Book find(Long id);
 
+    @Find
+    public abstract CompletableFuture<Book> findLater(Long id);
+
+    @Find
+    @FetchGraph(attributes = {"title", "author"})
+    public abstract Book findWithGraph(Long id);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @LoadGraph(attributes = "author")
+    public abstract List<Book> findBooksByTitleWithGraph(@QueryParam("title") final String title);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @FetchGraph(attributes = "title.length")
+    public abstract List<Book> findBooksByTitleWithBadGraph(@QueryParam("title") final String title);
+
+    @Find
+    @Lock(timeout = 1000)
+    public abstract Book findForUpdate(Long id);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Lock(timeout = 0)
+    public abstract List<Book> lockBooksByTitle(@QueryParam("title") final String title);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Lock(skipLocked = true)
+    public abstract List<Book> pollBooksByTitle(@QueryParam("title") final String title);
+
+    @Find
+    @ReadReplica
+    public abstract Book findOnReplica(Long id);
+
+    @QueryString("select b from Book b where b.author = :author order by b.title asc")
+    public abstract List<Book> findBooksByAuthorOnShard(@ShardKey @QueryParam("author") final String author);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @MaxConcurrent(value = 1, queueTimeout = 50)
+    public abstract List<Book> findBooksByTitleBounded(@QueryParam("title") final String title);
+
+    @NamedQuery(Book.FIND_BY_TITLE)
+    @Timeout(1000)
+    public abstract List<Book> findBooksByTitleWithTimeout(@QueryParam("title") final String title);
+
     @NamedQuery(Book.FIND_BY_ID)
     public abstract Book findById(@QueryParam("id") Long id);
 
@@ -16,15 +16,41 @@
  */
 package org.tomitribe.hodao;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import jakarta.annotation.Resource;
 import jakarta.ejb.EJB;
 import jakarta.ejb.EJBException;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
+import jakarta.persistence.OptimisticLockException;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PessimisticLockException;
+import jakarta.persistence.Query;
+import jakarta.persistence.QueryTimeoutException;
 import jakarta.transaction.UserTransaction;
 
 import org.apache.openejb.OpenEJB;
@@ -39,6 +65,12 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.tomitribe.hodao.impl.Bulkhead;
+import org.tomitribe.hodao.impl.DerivedQuery;
+import org.tomitribe.hodao.impl.Ordering;
+import org.tomitribe.hodao.impl.PersistenceHandler;
+import org.tomitribe.hodao.impl.Timeouts;
+import org.tomitribe.hodao.util.Jpql;
 
 @RunWith(ApplicationComposer.class)
 public class PersistenceHandlerTest {
@@ -58,7 +90,9 @@ public class PersistenceHandlerTest {
         unit.setJtaDataSource("database");
         unit.setNonJtaDataSource("databaseUnmanaged");
         unit.getClazz().add(Book.class.getName());
+        unit.getClazz().add(Shelf.class.getName());
         unit.setProperty("openjpa.jdbc.SynchronizeMappings", "buildSchema(ForeignKeys=true)");
+        unit.setProperty("openjpa.jdbc.DBDictionary", "hsql(SupportsSelectForUpdate=true)");
         return unit;
     }
 
@@ -268,6 +302,772 @@ public class PersistenceHandlerTest {
         Assert.assertEquals(new Long(1999), book.getYear());
     }
 
+    @Test
+    public void testProjection() throws Throwable {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        final List<BookSummary> summaries = crud.findSummariesByTitle("%10");
+        Assert.assertEquals(1, summaries.size());
+        Assert.assertEquals("Title10", summaries.get(0).getTitle());
+        Assert.assertEquals(new Long(1999), summaries.get(0).getYear());
+
+        final List<BookTitle> titles = crud.findAllTitles();
+        Assert.assertEquals(10, titles.size());
+        Assert.assertEquals("Title1", titles.get(0).getTitle());
+        Assert.assertEquals("Author1", titles.get(0).getAuthor());
+        Assert.assertEquals("Title1 by Author1", titles.get(0).getLabel());
+
+        final Book book = crud.findAll(0, 1).get(0);
+        final BookTitle title = crud.findTitleById(book.getId());
+        Assert.assertEquals(book.getTitle(), title.getTitle());
+        Assert.assertEquals(book.getAuthor(), title.getAuthor());
+
+        Assert.assertNull(crud.findTitleById(99999L));
+
+        try {
+            PersistenceHandler.invoke(entityManager, MutableTitles.class.getMethod("findAll"), new Object[0]);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface MutableTitle {
+        String getTitle();
+
+        void setTitle(String title);
+    }
+
+    public interface MutableTitles {
+        @QueryString("select b from Book b")
+        List<MutableTitle> findAll();
+    }
+
+    @Test
+    public void testPrimitiveResults() throws Exception {
+        Assert.assertEquals(0, crud.findAllIds().length);
+        Assert.assertEquals(0, crud.countAll());
+
+        for (int i = 0; i < 100; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1900 + i));
+
+            crud.create(book);
+        }
+
+        final long[] ids = crud.findAllIds();
+        Assert.assertEquals(100, ids.length);
+        for (int i = 1; i < ids.length; i++) {
+            Assert.assertTrue(ids[i - 1] < ids[i]);
+        }
+
+        Assert.assertArrayEquals(ids, crud.streamAllIds().toArray());
+        Assert.assertArrayEquals(new int[]{1909, 1999}, crud.findYearsByTitle("Title10%"));
+        Assert.assertEquals(100, crud.countAll());
+    }
+
+    @Test
+    public void testNativeQuery() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        final List<Book> books = crud.findBooksByTitleNative("%10");
+        Assert.assertEquals(1, books.size());
+        Assert.assertEquals("Author10", books.get(0).getAuthor());
+        Assert.assertEquals(new Long(1999), books.get(0).getYear());
+
+        Assert.assertEquals(2, crud.setAuthorNative("Hodor", "%1%"));
+        Assert.assertEquals("Hodor", crud.findBooksByTitle("Title10", 0, 1).get(0).getAuthor());
+    }
+
+    @Test
+    public void testDerivedQuery() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        PersistenceHandler.compile(entityManager, BookCrud.class);
+
+        Assert.assertEquals(new Long(1994), crud.findByTitle("Title5").getYear());
+
+        final List<Book> books = crud.findByYearGreaterThanEqualAndAuthorStartingWithOrderByYearDesc(1995L, "Author");
+        Assert.assertEquals(5, books.size());
+        Assert.assertEquals(new Long(1999), books.get(0).getYear());
+        Assert.assertEquals(new Long(1995), books.get(4).getYear());
+
+        final List<BookSummary> summaries = crud.findByTitleLikeOrAuthorOrderByTitleAsc("%10", "Author2");
+        Assert.assertEquals(2, summaries.size());
+        Assert.assertEquals("Title10", summaries.get(0).getTitle());
+        Assert.assertEquals("Title2", summaries.get(1).getTitle());
+
+        Assert.assertEquals(3, crud.countByYearLessThan(1993L));
+        Assert.assertTrue(crud.existsByTitle("Title1"));
+        Assert.assertFalse(crud.existsByTitle("Title11"));
+
+        // wildcards in the argument of Containing match literally
+        Assert.assertEquals(2, crud.countByTitleContaining("le1"));
+        Assert.assertEquals(0, crud.countByTitleContaining("%"));
+        Assert.assertEquals(0, crud.countByTitleContaining("_1"));
+        Assert.assertEquals(0, crud.countByTitleContaining("\\"));
+
+        final Method exists = BookCrud.class.getMethod("existsByTitle", String.class);
+        Assert.assertEquals("select x.id from Book x where x.title = ?1", DerivedQuery.of(entityManager, exists).getJpql());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i % 2));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        Assert.assertEquals(10, crud.search(null, null, 0, 50).size());
+        Assert.assertEquals(5, crud.search("Author0", null, 0, 50).size());
+        Assert.assertEquals(3, crud.search(null, 1997L, 0, 50).size());
+        Assert.assertEquals(2, crud.search("Author1", 1997L, 0, 50).size());
+        Assert.assertEquals(2, crud.search("Author1", null, 0, 2).size());
+
+        Assert.assertEquals(2, crud.searchSummaries("Title1%", null).size());
+        Assert.assertEquals(1, crud.searchSummaries("Title1%", 1995L).size());
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i % 2));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1999 - i));
+
+            crud.create(book);
+        }
+
+        Assert.assertEquals("Title1", crud.findBooksByTitleSorted("Title%", null).get(0).getTitle());
+        Assert.assertEquals("Title9", crud.findBooksByTitleSorted("Title%", "-title").get(0).getTitle());
+        Assert.assertEquals("Title10", crud.findBooksByTitleSorted("Title%", "year").get(0).getTitle());
+        Assert.assertEquals("Title1", crud.findBooksByTitleSorted("Title%", "b.year DESC").get(0).getTitle());
+
+        final List<Book> books = crud.searchSorted("Author1", "year asc");
+        Assert.assertEquals(5, books.size());
+        Assert.assertEquals("Title10", books.get(0).getTitle());
+
+        try {
+            crud.findBooksByTitleSorted("Title%", "author");
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+
+        try {
+            Ordering.of(AmbiguousOrder.class.getMethod("findBooks", String.class));
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface AmbiguousOrder {
+        @QueryString("select b from Book b, Shelf s")
+        List<Book> findBooks(@OrderBy(allowed = {"b.title", "s.title"}) String sort);
+    }
+
+    @Test
+    public void testCountAndExists() throws Throwable {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        Assert.assertEquals(2, crud.countBooksByTitle("Title1%"));
+        Assert.assertEquals(10, crud.countBooks(null));
+        Assert.assertEquals(3, crud.countBooks(1997L));
+
+        final Book book = crud.findAll(0, 1).get(0);
+        Assert.assertTrue(crud.bookExists(book.getId()));
+        Assert.assertFalse(crud.bookExists(99999L));
+        Assert.assertTrue(crud.bookExists("Title1%", 1999L));
+        Assert.assertFalse(crud.bookExists("Title1%", 1998L));
+
+        // a second book by the same author, authors are counted rather than books
+        final Book again = new Book();
+        again.setAuthor("Author1");
+        again.setTitle("Title11");
+        again.setYear(2000L);
+        crud.create(again);
+
+        Assert.assertEquals(10, crud.countAuthors());
+
+        try {
+            PersistenceHandler.invoke(entityManager, DistinctPairs.class.getMethod("countPairs"), new Object[0]);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface DistinctPairs {
+        @Count(query = "select distinct b.author, b.year from Book b")
+        long countPairs();
+    }
+
+    @Test
+    public void testPatch() throws Exception {
+        final Book book = new Book();
+        book.setAuthor("Author");
+        book.setTitle("Title");
+        book.setYear(2014L);
+
+        crud.create(book);
+
+        Assert.assertEquals(1, crud.patchBook(book.getId(), "Patched", null));
+        Assert.assertEquals(0, crud.patchBook(book.getId(), null, null));
+        Assert.assertEquals(0, crud.patchBook(99999L, "Missing", null));
+
+        Book patched = crud.find(book.getId());
+        Assert.assertEquals("Patched", patched.getTitle());
+        Assert.assertEquals("Author", patched.getAuthor());
+        Assert.assertEquals(Long.valueOf(2014L), patched.getYear());
+
+        final Book changes = new Book();
+        changes.setId(book.getId());
+        changes.setYear(2015L);
+
+        Assert.assertEquals(1, crud.patchBook(changes));
+
+        patched = crud.find(book.getId());
+        Assert.assertEquals("Patched", patched.getTitle());
+        Assert.assertEquals("Author", patched.getAuthor());
+        Assert.assertEquals(Long.valueOf(2015L), patched.getYear());
+
+        final Shelf shelf = new Shelf();
+        shelf.setName("Shelf");
+        shelf.setCapacity(10);
+
+        final Long id = crud.createShelf(shelf).getId();
+
+        // the capacity of 0 is left alone, as primitives are only patched with @Set
+        final Shelf renamed = new Shelf();
+        renamed.setId(id);
+        renamed.setName("Renamed");
+
+        Assert.assertEquals(1, crud.patchShelf(renamed));
+        Assert.assertEquals("Renamed", crud.findShelf(id).getName());
+        Assert.assertEquals(10, crud.findShelf(id).getCapacity());
+    }
+
+    @Test
+    public void testUpsert() throws Exception {
+        final Book existing = new Book();
+        existing.setAuthor("Author");
+        existing.setTitle("Title1");
+        existing.setYear(2014L);
+
+        crud.create(existing);
+
+        existing.setTitle("Updated1");
+
+        final List<Book> books = new ArrayList<Book>();
+        books.add(existing);
+        for (int i = 2; i <= 4; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+            books.add(book);
+        }
+
+        final List<Book> upserted = crud.upsert(books);
+        Assert.assertEquals(4, upserted.size());
+        Assert.assertEquals(existing.getId(), upserted.get(0).getId());
+        Assert.assertNotNull(upserted.get(3).getId());
+
+        Assert.assertEquals(4, crud.findAll(0, 100).size());
+        Assert.assertEquals("Updated1", crud.find(existing.getId()).getTitle());
+
+        final Book single = upserted.get(3);
+        single.setTitle("Updated4");
+        Assert.assertEquals(single.getId(), crud.upsert(single).getId());
+
+        Assert.assertEquals(4, crud.findAll(0, 100).size());
+        Assert.assertEquals("Updated4", crud.find(single.getId()).getTitle());
+    }
+
+    @Test
+    public void testChunkedUpdate() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (i + 1));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        Assert.assertEquals(10, crud.setYearOnAllBooksInChunks(2000L));
+        for (final Book book : crud.findAll(0, 100)) {
+            Assert.assertEquals(Long.valueOf(2000L), book.getYear());
+        }
+
+        final Book book = crud.findAll(0, 1).get(0);
+        book.setYear(2010L);
+        crud.update(book);
+
+        Assert.assertEquals(9, crud.deleteOlderInChunks(2005L));
+        Assert.assertEquals(1, crud.findAll(0, 100).size());
+        Assert.assertEquals(0, crud.deleteOlderInChunks(2005L));
+        Assert.assertEquals(1, crud.deleteAllInChunks());
+        Assert.assertEquals(0, crud.findAll(0, 100).size());
+    }
+
+    @Test
+    public void testInListChunks() throws Exception {
+        final List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 3; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            ids.add(crud.create(book).getId());
+        }
+
+        Assert.assertEquals(2, crud.findBooksByIds(ids.subList(0, 2)).size());
+
+        final List<Long> many = new ArrayList<Long>();
+        many.add(ids.get(2));
+        for (long i = 0; i < 2500; i++) {
+            many.add(1000000L + i);
+        }
+        many.add(ids.get(1));
+        many.add(ids.get(1));
+        many.add(ids.get(0));
+
+        // the chunks are sorted again by the query's order by
+        final List<String> titles = new ArrayList<String>();
+        for (final Book book : crud.findBooksByIds(many)) {
+            titles.add(book.getTitle());
+        }
+        Assert.assertEquals(Arrays.asList("Title0", "Title1", "Title2"), titles);
+        Assert.assertEquals(3, crud.setYearOnBooks(many, 2015L));
+        Assert.assertEquals(Long.valueOf(2015L), crud.find(ids.get(2)).getYear());
+
+        // a NOT IN list cannot be split, each chunk would delete what the others keep
+        try {
+            crud.deleteBooksExcept(many);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+        Assert.assertEquals(0, crud.deleteBooksExcept(ids));
+        Assert.assertEquals(Collections.singleton("ids"), Jpql.notInParameters("select b from Book b where b.year in :years and b.id not in :ids"));
+
+        // only whole IN lists are padded
+        final Set<String> inLists = Jpql.inParameters("select b from Book b where b.id in :ids and :tag member of b.tags and b.year not in (?2)");
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("ids", "2")), inLists);
+    }
+
+    @Test
+    public void testPartitioned() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + (i + 1));
+            book.setTitle("Title" + (9 - i));
+            book.setYear(new Long(1990 + i));
+
+            crud.create(book);
+        }
+
+        final List<Book> books = crud.findBooksByTitlePartitioned("Title%");
+        Assert.assertEquals(10, books.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("Title" + i, books.get(i).getTitle());
+        }
+
+        Assert.assertEquals(0, crud.findBooksByTitlePartitioned("Missing%").size());
+
+        final List<Book> recent = crud.streamBooksPartitioned(1995L).collect(Collectors.toList());
+        Assert.assertEquals(5, recent.size());
+        for (int i = 1; i < recent.size(); i++) {
+            Assert.assertTrue(recent.get(i - 1).getId() > recent.get(i).getId());
+        }
+
+        // every partition would return its own count, or its own groups
+        for (final Class<?> dao : Arrays.<Class<?>>asList(PartitionedCount.class, PartitionedGroups.class)) {
+            try {
+                PersistenceHandler.compile(entityManager, dao);
+                Assert.fail("Expected exception not thrown");
+            } catch (final ValidationException e) {
+                // expected exception
+            }
+        }
+    }
+
+    public interface PartitionedCount {
+        @QueryString("select count(b) from Book b")
+        @Partitioned
+        List<Long> countBooks();
+    }
+
+    public interface PartitionedGroups {
+        @QueryString("select b.author from Book b group by b.author")
+        @Partitioned
+        List<String> findAuthors();
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            crud.create(book);
+        }
+
+        final List<Book> all = crud.findAllLazily(0, Integer.MAX_VALUE);
+        Assert.assertFalse(all.isEmpty());
+        Assert.assertEquals("Title0", all.get(0).getTitle());
+        Assert.assertEquals("Title7", all.get(7).getTitle());
+        try {
+            all.get(10);
+            Assert.fail("Expected exception not thrown");
+        } catch (final IndexOutOfBoundsException e) {
+            // expected exception
+        }
+        Assert.assertEquals(10, all.size());
+
+        int i = 0;
+        for (final Book book : all) {
+            Assert.assertEquals("Title" + i++, book.getTitle());
+        }
+        Assert.assertEquals(10, i);
+
+        final List<Book> some = crud.findAllLazily(2, 5);
+        Assert.assertEquals(5, some.size());
+        Assert.assertEquals("Title2", some.get(0).getTitle());
+        Assert.assertEquals("Title6", some.get(4).getTitle());
+
+        i = 0;
+        for (final Book book : some) {
+            i++;
+        }
+        Assert.assertEquals(5, i);
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author" + i);
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            crud.create(book);
+        }
+
+        final Collector<Book> all = new Collector<Book>(3, -1);
+        crud.publishAll().subscribe(all);
+        Assert.assertTrue(all.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(10, all.items.size());
+        Assert.assertEquals("Title9", all.items.get(9).getTitle());
+
+        final Collector<BookTitle> titles = new Collector<BookTitle>(Long.MAX_VALUE, -1);
+        crud.publishTitles(2, 4).subscribe(titles);
+        Assert.assertTrue(titles.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(4, titles.items.size());
+        Assert.assertEquals("Title2", titles.items.get(0).getTitle());
+        Assert.assertEquals("Author5", titles.items.get(3).getAuthor());
+
+        final Collector<Book> cancelled = new Collector<Book>(2, 3);
+        crud.publishAll().subscribe(cancelled);
+        Assert.assertTrue(cancelled.cancelled.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(cancelled.completed.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, cancelled.items.size());
+    }
+
+    /**
+     * Requests a batch at a time, optionally cancelling after some items
+     */
+    private static class Collector<T> implements Flow.Subscriber<T> {
+
+        private final List<T> items = new CopyOnWriteArrayList<T>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+        private final long batch;
+        private final int cancelAfter;
+        private Flow.Subscription subscription;
+        private long outstanding;
+
+        private Collector(final long batch, final int cancelAfter) {
+            this.batch = batch;
+            this.cancelAfter = cancelAfter;
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            outstanding = batch;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(final T item) {
+            items.add(item);
+
+            if (items.size() == cancelAfter) {
+                subscription.cancel();
+                cancelled.countDown();
+                return;
+            }
+
+            if (--outstanding == 0) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            throwable.printStackTrace();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author, \"" + i + "\"");
+            book.setTitle("Title" + i);
+            book.setYear(new Long(2010 + i));
+
+            crud.create(book);
+        }
+
+        final StringWriter csv = new StringWriter();
+        Assert.assertEquals(3, crud.exportCsv(csv));
+
+        final String[] lines = csv.toString().split("\r\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(lines[0], lines[0].matches("id,author,title,year"));
+        Assert.assertTrue(lines[1], lines[1].matches("\\d+,\"Author, \"\"0\"\"\",Title0,2010"));
+
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        crud.exportJson(2011L, json);
+        Assert.assertEquals("[{\"title\":\"Title1\",\"published\":2011},{\"title\":\"Title2\",\"published\":2012}]",
+                json.toString("UTF-8"));
+
+        // rows are read as columns, the caller's managed entities and their changes are left alone
+        tx.begin();
+        try {
+            final Book book = entityManager.createQuery("select b from Book b where b.title = 'Title0'", Book.class).getSingleResult();
+            book.setTitle("Changed");
+
+            Assert.assertEquals(3, crud.exportCsv(new StringWriter()));
+            Assert.assertTrue(entityManager.contains(book));
+            Assert.assertEquals("Changed", book.getTitle());
+        } finally {
+            tx.rollback();
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Throwable {
+        final Method method = BookCrud.class.getMethod("findBooksByTitleCoalesced", String.class);
+
+        for (int i = 0; i < 5; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            crud.create(book);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<Book>>> futures = new ArrayList<Future<List<Book>>>();
+            for (int i = 0; i < 32; i++) {
+                final String title = (i % 2 == 0) ? "Title%" : "Title1%";
+                futures.add(executor.submit(new Callable<List<Book>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public List<Book> call() throws Exception {
+                        try {
+                            // outside a transaction, unlike calls through the bean
+                            return (List<Book>) PersistenceHandler.invoke(entityManager, method, new Object[]{title});
+                        } catch (final Throwable t) {
+                            throw new Exception(t);
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                final List<Book> books = futures.get(i).get(10, TimeUnit.SECONDS);
+                Assert.assertEquals((i % 2 == 0) ? 5 : 1, books.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            ((List<?>) PersistenceHandler.invoke(entityManager, method, new Object[]{"Title%"})).clear();
+            Assert.fail("Coalesced results are read-only");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+
+        // a batched find is read after the call returns, on an EntityManager the shared execution has closed
+        try {
+            PersistenceHandler.invoke(entityManager, CoalescedFind.class.getMethod("findLater", Long.class), new Object[]{1L});
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+
+        // in a transaction the call runs on the caller's EntityManager and sees its writes
+        tx.begin();
+        try {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title5");
+            book.setYear(2014L);
+            crud.create(book);
+
+            Assert.assertEquals(6, crud.findBooksByTitleCoalesced("Title%").size());
+        } finally {
+            tx.rollback();
+        }
+    }
+
+    public interface CoalescedFind {
+        @Find
+        @Coalesce
+        CompletableFuture<Book> findLater(Long id);
+    }
+
+    @Test
+    public void testMemoize() throws Exception {
+        final Book book = new Book();
+        book.setAuthor("Author");
+        book.setTitle("Title1");
+        book.setYear(2014L);
+
+        crud.create(book);
+
+        Assert.assertNotSame(crud.findBooksByTitleMemoized("Title%"), crud.findBooksByTitleMemoized("Title%"));
+
+        tx.begin();
+        try {
+            final List<Book> first = crud.findBooksByTitleMemoized("Title%");
+            Assert.assertEquals(1, first.size());
+            Assert.assertSame(first, crud.findBooksByTitleMemoized("Title%"));
+            Assert.assertNotSame(first, crud.findBooksByTitleMemoized("Title1%"));
+
+            final Book another = new Book();
+            another.setAuthor("Author");
+            another.setTitle("Title2");
+            another.setYear(2014L);
+            crud.create(another);
+
+            final List<Book> second = crud.findBooksByTitleMemoized("Title%");
+            Assert.assertNotSame(first, second);
+            Assert.assertEquals(2, second.size());
+            Assert.assertSame(second, crud.findBooksByTitleMemoized("Title%"));
+        } finally {
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void testFindBatch() throws Exception {
+        final List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 3; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            ids.add(crud.create(book).getId());
+        }
+
+        Assert.assertEquals("Title0", crud.findLater(ids.get(0)).get().getTitle());
+
+        tx.begin();
+        try (FindBatch batch = FindBatch.open()) {
+            final CompletableFuture<Book> first = crud.findLater(ids.get(0));
+            final CompletableFuture<Book> second = crud.findLater(ids.get(1));
+            final CompletableFuture<Book> again = crud.findLater(ids.get(0));
+            final CompletableFuture<Book> missing = crud.findLater(99999L);
+
+            Assert.assertFalse(first.isDone());
+            Assert.assertSame(first, again);
+
+            batch.dispatch();
+
+            Assert.assertTrue(second.isDone());
+            Assert.assertEquals("Title0", first.get().getTitle());
+            Assert.assertEquals("Title1", second.get().getTitle());
+            Assert.assertNull(missing.get());
+
+            final CompletableFuture<Book> third = crud.findLater(ids.get(2));
+            Assert.assertFalse(third.isDone());
+            Assert.assertEquals("Title2", third.join().getTitle());
+
+            // the same id queued on another EntityManager is read there
+            final EntityManager other = entityManager.getEntityManagerFactory().createEntityManager();
+            try {
+                final CompletableFuture<Object> mine = batch.enqueue(entityManager, Book.class, ids.get(1));
+                final CompletableFuture<Object> theirs = batch.enqueue(other, Book.class, ids.get(1));
+
+                Assert.assertNotSame(mine, theirs);
+                batch.dispatch();
+                Assert.assertTrue(other.contains(theirs.get()));
+                Assert.assertFalse(other.contains(mine.get()));
+            } finally {
+                other.close();
+            }
+        } finally {
+            tx.commit();
+        }
+
+        Assert.assertNull(FindBatch.current());
+    }
+
     @Test
     public void testFindByPrimaryKey() throws Exception {
         Book book1 = new Book();
@@ -285,6 +1085,393 @@ public class PersistenceHandlerTest {
         Assert.assertEquals(book1.getYear(), retrievedBook.getYear());
     }
 
+    @Test
+    public void testEntityGraph() throws Exception {
+        final Book book = new Book();
+        book.setAuthor("Author");
+        book.setTitle("Title");
+        book.setYear(2014L);
+
+        crud.create(book);
+
+        // OpenJPA has no entity graphs, so this only checks the hint does no harm
+        Assert.assertEquals("Title", crud.findWithGraph(book.getId()).getTitle());
+        Assert.assertEquals(1, crud.findBooksByTitleWithGraph("Title%").size());
+
+        try {
+            crud.findBooksByTitleWithBadGraph("Title%");
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void testLock() throws Exception {
+        final Book book = new Book();
+        book.setAuthor("Author");
+        book.setTitle("Title");
+        book.setYear(2014L);
+
+        crud.create(book);
+
+        Assert.assertEquals("Title", crud.findForUpdate(book.getId()).getTitle());
+        Assert.assertEquals(1, crud.lockBooksByTitle("Title%").size());
+
+        // OpenJPA cannot skip locked rows
+        try {
+            crud.pollBooksByTitle("Title%");
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void testRetry() throws Throwable {
+        final Shelf shelf = new Shelf();
+        shelf.setName("Shelf");
+
+        final Long id = crud.createShelf(shelf).getId();
+        final Method method = BookCrud.class.getMethod("renameShelfWithRetry", Long.class, String.class);
+
+        // outside a transaction, unlike calls through the bean
+        Assert.assertEquals(1, PersistenceHandler.invoke(entityManager, method, new Object[]{id, "Renamed"}));
+        Assert.assertEquals("Renamed", crud.findShelf(id).getName());
+
+        // the first attempt meets a lock conflict, the second reads the row again and succeeds
+        PersistenceHandler.invoke(conflictingOnce(entityManager), method, new Object[]{id, "Retried"});
+        Assert.assertEquals("Retried", crud.findShelf(id).getName());
+
+        Assert.assertEquals(1, Metrics.get(method, Metrics.RETRIED));
+        Assert.assertEquals(1, Metrics.get(method, Metrics.RECOVERED));
+        Assert.assertEquals(0, Metrics.get(method, Metrics.EXHAUSTED));
+
+        // in the caller's transaction the call is tried once, there
+        tx.begin();
+        try {
+            Assert.assertEquals(1, PersistenceHandler.invoke(entityManager, method, new Object[]{id, "Nested"}));
+        } finally {
+            tx.rollback();
+        }
+
+        final Method merge = BookCrud.class.getMethod("updateShelfWithRetry", Shelf.class);
+
+        // another transaction changes the capacity while the merge runs, the name is reapplied on top of it
+        final Shelf mine = crud.findShelf(id);
+        mine.setName("Mine");
+        PersistenceHandler.invoke(onFirstFlush(entityManager, concurrently(id, null, 7)), merge, new Object[]{mine});
+
+        Assert.assertEquals("Mine", crud.findShelf(id).getName());
+        Assert.assertEquals(7, crud.findShelf(id).getCapacity());
+        Assert.assertEquals(1, Metrics.get(merge, Metrics.RECOVERED));
+
+        // another transaction changes the name too, nothing is overwritten
+        final Shelf theirs = crud.findShelf(id);
+        theirs.setName("Lost");
+        try {
+            PersistenceHandler.invoke(onFirstFlush(entityManager, concurrently(id, "Theirs", 7)), merge, new Object[]{theirs});
+            Assert.fail("Expected exception not thrown");
+        } catch (final OptimisticLockException e) {
+            // expected exception
+        }
+        Assert.assertEquals("Theirs", crud.findShelf(id).getName());
+
+        // a copy stale before the call has no known base and is not reapplied
+        final Shelf stale = crud.findShelf(id);
+        final Shelf fresh = crud.findShelf(id);
+        fresh.setCapacity(9);
+        crud.updateShelf(fresh);
+
+        stale.setName("Stale");
+        try {
+            PersistenceHandler.invoke(entityManager, merge, new Object[]{stale});
+            Assert.fail("Expected exception not thrown");
+        } catch (final OptimisticLockException e) {
+            // expected exception
+        }
+        Assert.assertEquals("Theirs", crud.findShelf(id).getName());
+        // the conflicting change was found on reloading, the stale copy was never retried
+        Assert.assertEquals(2, Metrics.get(merge, Metrics.RETRIED));
+
+        try {
+            PersistenceHandler.invoke(entityManager, RetriedUpsert.class.getMethod("upsert", Shelf.class), new Object[]{shelf});
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface RetriedUpsert {
+        @Upsert
+        @Retry
+        Shelf upsert(Shelf shelf);
+    }
+
+    private EntityManager conflictingOnce(final EntityManager em) {
+        return onFirstFlush(em, new Callable<Object>() {
+            @Override
+            public Object call() {
+                throw new PessimisticLockException("Conflict");
+            }
+        });
+    }
+
+    /**
+     * Change the shelf in a transaction of its own, on another thread
+     */
+    private Callable<Object> concurrently(final Long id, final String name, final int capacity) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                final ExecutorService executor = Executors.newSingleThreadExecutor();
+                try {
+                    return executor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            final Shelf shelf = crud.findShelf(id);
+                            if (name != null) {
+                                shelf.setName(name);
+                            }
+                            shelf.setCapacity(capacity);
+                            return crud.updateShelf(shelf);
+                        }
+                    }).get(10, TimeUnit.SECONDS);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Run the action just before the first flush
+     */
+    private EntityManager onFirstFlush(final EntityManager em, final Callable<Object> action) {
+        final AtomicInteger flushes = new AtomicInteger();
+
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("flush".equals(method.getName()) && flushes.getAndIncrement() == 0) {
+                    action.call();
+                }
+                try {
+                    return method.invoke(em, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testReadReplica() throws Throwable {
+        final Book book = new Book();
+        book.setAuthor("Author");
+        book.setTitle("Title");
+        book.setYear(2014L);
+
+        final Book created = crud.create(book);
+
+        final AtomicInteger primaryCalls = new AtomicInteger();
+        final AtomicInteger replicaCalls = new AtomicInteger();
+        final ReplicaSet replicas = new ReplicaSet(counting(entityManager, primaryCalls), ReplicaSet.Balance.LEAST_LOADED,
+                counting(entityManager, replicaCalls));
+
+        final Method find = BookCrud.class.getMethod("findOnReplica", Long.class);
+        final Method update = BookCrud.class.getMethod("update", Book.class);
+
+        tx.begin();
+        try {
+            final Book found = (Book) PersistenceHandler.invoke(replicas, find, new Object[]{created.getId()});
+            Assert.assertEquals("Title", found.getTitle());
+            Assert.assertTrue(replicaCalls.get() > 0);
+            Assert.assertEquals(0, primaryCalls.get());
+            Assert.assertArrayEquals(new int[]{0}, replicas.getRunning());
+
+            created.setTitle("Changed");
+            PersistenceHandler.invoke(replicas, update, new Object[]{created});
+            Assert.assertTrue(primaryCalls.get() > 0);
+
+            // once the transaction has written, it reads from the primary
+            replicaCalls.set(0);
+            PersistenceHandler.invoke(replicas, find, new Object[]{created.getId()});
+            Assert.assertEquals(0, replicaCalls.get());
+        } finally {
+            tx.commit();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShards() throws Throwable {
+        Long id = null;
+        for (int i = 0; i < 3; i++) {
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title" + i);
+            book.setYear(2014L);
+
+            id = crud.create(book).getId();
+        }
+
+        final AtomicInteger firstCalls = new AtomicInteger();
+        final AtomicInteger secondCalls = new AtomicInteger();
+        final ShardSet shards = new ShardSet(counting(entityManager, firstCalls), counting(entityManager, secondCalls));
+
+        final Method byAuthor = BookCrud.class.getMethod("findBooksByAuthorOnShard", String.class);
+        final Method byTitle = BookCrud.class.getMethod("findBooksByTitle", String.class, Integer.class, Integer.class);
+        final Method count = BookCrud.class.getMethod("countBooksByTitle", String.class);
+        final Method find = BookCrud.class.getMethod("find", Long.class);
+
+        tx.begin();
+        try {
+            Assert.assertEquals(3, ((List<Book>) PersistenceHandler.invoke(shards, byAuthor, new Object[]{"Author"})).size());
+            Assert.assertTrue((firstCalls.get() == 0) != (secondCalls.get() == 0));
+
+            Assert.assertEquals(id, ((Book) PersistenceHandler.invoke(shards, find, new Object[]{id})).getId());
+
+            // both shards are the same database, so every book is gathered twice
+            Assert.assertEquals(6L, PersistenceHandler.invoke(shards, count, new Object[]{"Title%"}));
+
+            final List<Book> page = (List<Book>) PersistenceHandler.invoke(shards, byTitle, new Object[]{"Title%", 1, 3});
+            final List<String> titles = new ArrayList<String>();
+            for (final Book book : page) {
+                titles.add(book.getTitle());
+            }
+            Assert.assertEquals(Arrays.asList("Title0", "Title1", "Title1"), titles);
+
+            // offset + max does not overflow
+            Assert.assertEquals(5, ((List<Book>) PersistenceHandler.invoke(shards, byTitle, new Object[]{"Title%", 1, Integer.MAX_VALUE})).size());
+
+            // in a transaction every shard is read in it, seeing its writes
+            final Book book = new Book();
+            book.setAuthor("Author");
+            book.setTitle("Title3");
+            book.setYear(2014L);
+            crud.create(book);
+
+            Assert.assertEquals(8L, PersistenceHandler.invoke(shards, count, new Object[]{"Title%"}));
+        } finally {
+            tx.rollback();
+        }
+
+        try {
+            PersistenceHandler.compile(shards, ShardedMaximum.class);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+
+        try {
+            PersistenceHandler.compile(shards, ShardedPersist.class);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface ShardedMaximum {
+        @QueryString("select max(b.year) from Book b")
+        Long findLatestYear();
+    }
+
+    public interface ShardedPersist {
+        @Persist
+        Book create(Book book);
+    }
+
+    @Test
+    public void testMaxConcurrent() throws Throwable {
+        final Method method = BookCrud.class.getMethod("findBooksByTitleBounded", String.class);
+
+        tx.begin();
+        try {
+            Assert.assertEquals(0, ((List<Book>) PersistenceHandler.invoke(entityManager, method, new Object[]{"Title"})).size());
+
+            // hold the only permit as a running call would
+            final Bulkhead bulkhead = Bulkhead.of(method);
+            bulkhead.acquire(method);
+            try {
+                PersistenceHandler.invoke(entityManager, method, new Object[]{"Title"});
+                Assert.fail("Expected exception not thrown");
+            } catch (final RejectedException e) {
+                // expected exception
+            } finally {
+                bulkhead.release();
+            }
+
+            Assert.assertEquals(0, ((List<Book>) PersistenceHandler.invoke(entityManager, method, new Object[]{"Title"})).size());
+        } finally {
+            tx.commit();
+        }
+
+        Assert.assertEquals(1, Metrics.get(method, Metrics.QUEUED));
+        Assert.assertEquals(1, Metrics.get(method, Metrics.REJECTED));
+    }
+
+    @Test
+    public void testTimeout() throws Throwable {
+        Assert.assertEquals(0, crud.findBooksByTitleWithTimeout("Title").size());
+
+        final Method method = BookCrud.class.getMethod("findBooksByTitleWithTimeout", String.class);
+        final AtomicInteger calls = new AtomicInteger();
+
+        tx.begin();
+        try (Deadline deadline = Deadline.open(0)) {
+            PersistenceHandler.invoke(counting(entityManager, calls), method, new Object[]{"Title"});
+            Assert.fail("Expected exception not thrown");
+        } catch (final QueryTimeoutException e) {
+            // expected exception
+        } finally {
+            tx.commit();
+        }
+
+        // failed without going to the database
+        Assert.assertEquals(0, calls.get());
+        Assert.assertNull(Deadline.current());
+
+        // derived existence checks are bounded too
+        final Method exists = BookCrud.class.getMethod("existsByTitle", String.class);
+        tx.begin();
+        try (Deadline deadline = Deadline.open(0)) {
+            PersistenceHandler.invokeDerivedQuery(entityManager, exists, new Object[]{"Title"});
+            Assert.fail("Expected exception not thrown");
+        } catch (final QueryTimeoutException e) {
+            // expected exception
+        } finally {
+            tx.commit();
+        }
+
+        tx.begin();
+        try (Deadline outer = Deadline.open(1000); Deadline inner = Deadline.open(60000)) {
+            Assert.assertTrue(inner.remaining() <= 1000);
+
+            final Query query = entityManager.createNamedQuery(Book.FIND_BY_TITLE);
+            Timeouts.apply(query);
+
+            final int timeout = (Integer) query.getHints().get(Timeouts.HINT);
+            Assert.assertTrue(timeout > 0 && timeout <= 1000);
+        } finally {
+            tx.commit();
+        }
+    }
+
+    private EntityManager counting(final EntityManager em, final AtomicInteger calls) {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                calls.incrementAndGet();
+                try {
+                    return method.invoke(em, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
     @Test
     public void testNonOptionalFinder() throws Exception {
         Book book1 = new Book();
@@ -312,6 +1499,33 @@ public class PersistenceHandlerTest {
         Assert.assertNull(crud.optionalFindById(99999L));
     }
 
+    @Test
+    public void testUnsupportedNativeQuery() throws Exception {
+        try {
+            PersistenceHandler.compile(entityManager, NativePublisher.class);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+
+        try {
+            PersistenceHandler.compile(entityManager, NativeProjection.class);
+            Assert.fail("Expected exception not thrown");
+        } catch (final ValidationException e) {
+            // expected exception
+        }
+    }
+
+    public interface NativePublisher {
+        @NativeQuery("select * from Book")
+        Flow.Publisher<Book> findAll();
+    }
+
+    public interface NativeProjection {
+        @NativeQuery("select title from Book")
+        List<BookSummary> findSummaries();
+    }
+
     @Test
     public void testInvalidMethod() throws Exception {
         try {